@@ -16,22 +16,29 @@
 package eu.delving.x3ml;
 
 import eu.delving.x3ml.engine.Generator;
+import eu.delving.x3ml.engine.Trace;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.PosixParser;
+import org.apache.commons.io.IOUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
 import java.util.List;
 
 import static eu.delving.x3ml.X3MLEngine.exception;
@@ -91,8 +98,24 @@ public class X3MLCommandLine {
                 "uuidTestSize", true,
                 "Create a test UUID generator of the given size. Default is UUID from operating system"
         );
+        Option aux = new Option(
+                "aux", true,
+                "Auxiliary input for joins, addressed as $name in range expressions: -aux persons=persons.xml (repeatable)"
+        );
+        Option trace = new Option(
+                "trace", true,
+                "Write a trace of the mapping as JSON lines: -trace trace.json"
+        );
+        Option traceLevel = new Option(
+                "traceLevel", true,
+                "How much to trace: -traceLevel WARN, INFO (default), DEBUG"
+        );
+        Option plan = new Option(
+                "plan", false,
+                "Keep a binary plan next to the mapping and policy files, so later runs skip parsing them"
+        );
         options.addOption(rdfFormat).addOption(rdf).addOption(x3ml).addOption(xml).addOption(policy)
-                .addOption(validate).addOption(uuidTestSize);
+                .addOption(validate).addOption(uuidTestSize).addOption(aux).addOption(trace).addOption(traceLevel).addOption(plan);
         try {
             CommandLine cli = PARSER.parse(options, args);
             int uuidTestSizeValue = -1;
@@ -107,7 +130,11 @@ public class X3MLCommandLine {
                     cli.getOptionValue("rdf"),
                     cli.getOptionValue("format"),
                     cli.hasOption("validate"),
-                    uuidTestSizeValue
+                    uuidTestSizeValue,
+                    cli.getOptionValues("aux"),
+                    cli.getOptionValue("trace"),
+                    cli.getOptionValue("traceLevel", "INFO"),
+                    cli.hasOption("plan")
             );
         }
         catch (Exception e) {
@@ -154,7 +181,10 @@ public class X3MLCommandLine {
         }
     }
 
-    static Generator getValuePolicy(String policy, X3MLGeneratorPolicy.UUIDSource uuidSource) {
+    static Generator getValuePolicy(String policy, X3MLGeneratorPolicy.UUIDSource uuidSource, boolean plan) {
+        if (policy != null && plan) {
+            return X3MLGeneratorPolicy.loadWithPlan(file(policy), uuidSource);
+        }
         FileInputStream stream = null;
         if (policy != null) {
             stream = getStream(file(policy));
@@ -177,7 +207,7 @@ public class X3MLCommandLine {
         }
     }
 
-    static void go(String xml, String x3ml, String policy, String rdf, String rdfFormat, boolean validate, int uuidTestSize) {
+    static void go(String xml, String x3ml, String policy, String rdf, String rdfFormat, boolean validate, int uuidTestSize, String[] aux, String trace, String traceLevel, boolean plan) {
         Element xmlElement;
         if ("@".equals(xml)) {
             xmlElement = xml(System.in);
@@ -185,12 +215,12 @@ public class X3MLCommandLine {
         else {
             xmlElement = xml(file(xml));
         }
-        InputStream x3mlStream;
+        X3MLEngine engine;
         if ("@".equals(x3ml)) {
             if (validate) {
                 throw exception("Cannot validate when X3ML is piped");
             }
-            x3mlStream = System.in;
+            engine = X3MLEngine.load(System.in);
         }
         else {
             if (validate) {
@@ -203,13 +233,47 @@ public class X3MLCommandLine {
                     return;
                 }
             }
-            x3mlStream = getStream(file(x3ml));
+            engine = plan ? X3MLEngine.loadWithPlan(file(x3ml)) : X3MLEngine.load(getStream(file(x3ml)));
+        }
+        if (aux != null) {
+            for (String binding : aux) {
+                int equals = binding.indexOf('=');
+                if (equals <= 0) {
+                    throw exception("Auxiliary input must be name=file: " + binding);
+                }
+                engine.getJoinFiles().addInput(binding.substring(0, equals), file(binding.substring(equals + 1)));
+            }
+        }
+        Writer traceWriter = null;
+        try {
+            if (trace != null) {
+                Trace.Level level = traceLevel(traceLevel);
+                traceWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(trace), "UTF-8"));
+                engine.setTrace(new Trace(level, traceWriter));
+            }
+            X3MLEngine.Output output = engine.execute(
+                    xmlElement,
+                    getValuePolicy(policy, X3MLGeneratorPolicy.createUUIDSource(uuidTestSize), plan)
+            );
+            output.write(rdf(rdf), rdfFormat);
+            if (traceWriter != null) {
+                traceWriter.close();
+            }
+        }
+        catch (IOException e) {
+            throw exception("Unable to write trace: " + trace, e);
+        }
+        finally {
+            IOUtils.closeQuietly(traceWriter);
+        }
+    }
+
+    static Trace.Level traceLevel(String traceLevel) {
+        try {
+            return Trace.Level.valueOf(traceLevel);
+        }
+        catch (IllegalArgumentException e) {
+            throw exception("Unknown trace level: " + traceLevel + ", expected WARN, INFO or DEBUG");
         }
-        X3MLEngine engine = X3MLEngine.load(x3mlStream);
-        X3MLEngine.Output output = engine.execute(
-                xmlElement,
-                getValuePolicy(policy, X3MLGeneratorPolicy.createUUIDSource(uuidTestSize))
-        );
-        output.write(rdf(rdf), rdfFormat);
     }
 }
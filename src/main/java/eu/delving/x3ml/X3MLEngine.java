@@ -15,9 +15,24 @@
 //===========================================================================
 package eu.delving.x3ml;
 
+import eu.delving.x3ml.engine.ConditionPushdown;
+import eu.delving.x3ml.engine.ConstantFolds;
+import eu.delving.x3ml.engine.ExpressionMemo;
 import eu.delving.x3ml.engine.Generator;
+import eu.delving.x3ml.engine.JoinFiles;
+import eu.delving.x3ml.engine.JoinReport;
+import eu.delving.x3ml.engine.PlanCache;
 import eu.delving.x3ml.engine.Root;
-
+import eu.delving.x3ml.engine.SortedInputs;
+import eu.delving.x3ml.engine.SourceBackend;
+import eu.delving.x3ml.engine.SourceInput;
+import eu.delving.x3ml.engine.Trace;
+import eu.delving.x3ml.engine.ValueScopes;
+import eu.delving.x3ml.engine.X3MLReader;
+import eu.delving.x3ml.engine.XPathCache;
+import eu.delving.x3ml.engine.XdmInput;
+
+import net.sf.saxon.s9api.XdmNode;
 import org.apache.commons.io.IOUtils;
 import org.w3c.dom.Element;
 import org.w3c.dom.ls.LSInput;
@@ -35,6 +50,7 @@ import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -66,6 +82,16 @@ public class X3MLEngine {
     private RootElement rootElement;
     private NamespaceContext namespaceContext = new XPathContext();
     private List<String> prefixes = new ArrayList<String>();
+    private final XPathCache xpathCache = new XPathCache();
+    private final JoinReport joinReport = new JoinReport();
+    private final JoinFiles joinFiles = new JoinFiles(xpathCache, namespaceContext);
+    private final SortedInputs sortedInputs = new SortedInputs();
+    private final ExpressionMemo expressionMemo = new ExpressionMemo();
+    private final ConstantFolds constantFolds = new ConstantFolds();
+    private final ValueScopes valueScopes = new ValueScopes();
+    private ConditionPushdown conditionPushdown;
+    private Trace trace = Trace.OFF;
+    private final SourceInput.Factory sourceFactory;
 
     public static List<String> validate(InputStream inputStream) {
         try {
@@ -80,11 +106,37 @@ public class X3MLEngine {
     }
 
     public static X3MLEngine load(InputStream inputStream) throws X3MLException {
-        RootElement rootElement = (RootElement) x3mlStream().fromXML(inputStream);
+        return load(inputStream, SourceBackend.DOM);
+    }
+
+    public static X3MLEngine load(InputStream inputStream, SourceInput.Factory sourceFactory) throws X3MLException {
+        return create(X3MLReader.readX3ML(inputStream), sourceFactory);
+    }
+
+    /**
+     * Load from a file, keeping a plan next to it so that later loads of
+     * the same content need not parse it.
+     */
+
+    public static X3MLEngine loadWithPlan(File file) throws X3MLException {
+        return loadWithPlan(file, SourceBackend.DOM);
+    }
+
+    public static X3MLEngine loadWithPlan(File file, SourceInput.Factory sourceFactory) throws X3MLException {
+        RootElement rootElement = PlanCache.load(file, RootElement.class, new PlanCache.Parser<RootElement>() {
+            @Override
+            public RootElement parse(InputStream inputStream) {
+                return X3MLReader.readX3ML(inputStream);
+            }
+        });
+        return create(rootElement, sourceFactory);
+    }
+
+    private static X3MLEngine create(RootElement rootElement, SourceInput.Factory sourceFactory) {
         if (!VERSION.equals(rootElement.version)) {
             throw exception("Incorrect X3ML Version "+rootElement.version+ ", expected "+VERSION);
         }
-        return new X3MLEngine(rootElement);
+        return new X3MLEngine(rootElement, sourceFactory);
     }
 
     public static void save(X3MLEngine engine, OutputStream outputStream) throws X3MLException {
@@ -100,7 +152,18 @@ public class X3MLEngine {
     }
 
     public Output execute(Element sourceRoot, Generator generator) throws X3MLException {
-        Root rootContext = new Root(sourceRoot, generator, namespaceContext, prefixes);
+        SourceInput input = sourceFactory.create(sourceRoot, xpathCache, namespaceContext, generator.getLanguageFromMapping());
+        return execute(input, sourceFactory, generator);
+    }
+
+    public Output execute(XdmNode sourceRoot, Generator generator) throws X3MLException {
+        Element element = XdmInput.documentElement(sourceRoot);
+        SourceInput input = new XdmInput(element, xpathCache, namespaceContext, generator.getLanguageFromMapping());
+        return execute(input, SourceBackend.TINY_TREE, generator);
+    }
+
+    private Output execute(SourceInput input, SourceInput.Factory factory, Generator generator) {
+        Root rootContext = new Root(input, joinFiles.session(factory, input), sortedInputs, expressionMemo, constantFolds, valueScopes, trace, generator, namespaceContext, prefixes);
         generator.setDefaultArgType(rootElement.sourceType);
         generator.setLanguageFromMapping(rootElement.language);
         if (rootElement.namespaces != null) {
@@ -109,9 +172,53 @@ public class X3MLEngine {
             }
         }
         rootElement.apply(rootContext);
+        joinReport.record(input.getJoinIndexes());
+        sortedInputs.record(rootContext.getMergeJoins());
+        valueScopes.recordHeld(rootContext.getGeneratedCount());
+        trace.flush();
         return rootContext.getModelOutput();
     }
 
+    public XPathCache getXPathCache() {
+        return xpathCache;
+    }
+
+    public JoinReport getJoinReport() {
+        return joinReport;
+    }
+
+    public JoinFiles getJoinFiles() {
+        return joinFiles;
+    }
+
+    public SortedInputs getSortedInputs() {
+        return sortedInputs;
+    }
+
+    public ExpressionMemo getExpressionMemo() {
+        return expressionMemo;
+    }
+
+    public ConstantFolds getConstantFolds() {
+        return constantFolds;
+    }
+
+    public ValueScopes getValueScopes() {
+        return valueScopes;
+    }
+
+    public void setTrace(Trace trace) {
+        this.trace = trace == null ? Trace.OFF : trace;
+    }
+
+    public Trace getTrace() {
+        return trace;
+    }
+
+    public ConditionPushdown getConditionPushdown() {
+        return conditionPushdown;
+    }
+
     public String toString() {
         return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + x3mlStream().toXML(rootElement);
     }
@@ -130,14 +237,17 @@ public class X3MLEngine {
 
     // ====================
 
-    private X3MLEngine(RootElement rootElement) {
+    private X3MLEngine(RootElement rootElement, SourceInput.Factory sourceFactory) {
         this.rootElement = rootElement;
+        this.sourceFactory = sourceFactory;
+        this.rootElement.bind();
         if (this.rootElement.namespaces != null) {
             for (MappingNamespace namespace : this.rootElement.namespaces) {
                 ((XPathContext) namespaceContext).addNamespace(namespace.prefix, namespace.uri);
                 prefixes.add(namespace.prefix);
             }
         }
+        this.conditionPushdown = ConditionPushdown.plan(rootElement, namespaceContext);
     }
 
     private class XPathContext implements NamespaceContext {
@@ -19,7 +19,10 @@ import com.damnhandy.uri.template.MalformedUriTemplateException;
 import com.damnhandy.uri.template.UriTemplate;
 import com.damnhandy.uri.template.VariableExpansionException;
 import eu.delving.x3ml.engine.Generator;
+import eu.delving.x3ml.engine.PlanCache;
+import eu.delving.x3ml.engine.X3MLReader;
 
+import java.io.File;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -29,12 +32,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static eu.delving.x3ml.X3MLEngine.exception;
 import static eu.delving.x3ml.engine.X3ML.*;
-import static eu.delving.x3ml.engine.X3ML.Helper.generatorStream;
 import static eu.delving.x3ml.engine.X3ML.Helper.literalValue;
 import static eu.delving.x3ml.engine.X3ML.Helper.typedLiteralValue;
 import static eu.delving.x3ml.engine.X3ML.Helper.uriValue;
@@ -49,6 +52,7 @@ public class X3MLGeneratorPolicy implements Generator {
     private static final Pattern BRACES = Pattern.compile("\\{[?;+#]?([^}]+)\\}");
     private Map<String, GeneratorSpec> generatorMap = new TreeMap<String, GeneratorSpec>();
     private Map<String, String> namespaceMap = new TreeMap<String, String>();
+    private final Map<String, List<String>> variablesMap = new ConcurrentHashMap<String, List<String>>();
     private UUIDSource uuidSource;
     private SourceType defaultSourceType;
     private String languageFromMapping;
@@ -69,16 +73,30 @@ public class X3MLGeneratorPolicy implements Generator {
     }
 
     public static X3MLGeneratorPolicy load(InputStream inputStream, UUIDSource uuidSource) {
-        return new X3MLGeneratorPolicy(inputStream, uuidSource);
+        return new X3MLGeneratorPolicy(inputStream == null ? null : X3MLReader.readPolicy(inputStream), uuidSource);
+    }
+
+    /**
+     * Load from a file, keeping a plan next to it so that later loads of
+     * the same content need not parse it.
+     */
+
+    public static X3MLGeneratorPolicy loadWithPlan(File file, UUIDSource uuidSource) {
+        GeneratorPolicy policy = PlanCache.load(file, GeneratorPolicy.class, new PlanCache.Parser<GeneratorPolicy>() {
+            @Override
+            public GeneratorPolicy parse(InputStream inputStream) {
+                return X3MLReader.readPolicy(inputStream);
+            }
+        });
+        return new X3MLGeneratorPolicy(policy, uuidSource);
     }
 
     public static UUIDSource createUUIDSource(int uuidSize) {
         return uuidSize > 0 ? new TestUUIDSource(uuidSize) : new RealUUIDSource();
     }
 
-    private X3MLGeneratorPolicy(InputStream inputStream, UUIDSource uuidSource) {
-        if (inputStream != null) {
-            GeneratorPolicy policy = (GeneratorPolicy) generatorStream().fromXML(inputStream);
+    private X3MLGeneratorPolicy(GeneratorPolicy policy, UUIDSource uuidSource) {
+        if (policy != null) {
             for (GeneratorSpec generator : policy.generators) {
                 if (generatorMap.containsKey(generator.name)) {
                     throw exception("Duplicate generator name: " + generator.name);
@@ -153,6 +171,21 @@ public class X3MLGeneratorPolicy implements Generator {
         }
     }
 
+    @Override
+    public boolean isConstant(String name, Map<String, SourceType> argTypes) {
+        if (!argTypes.containsKey("text")) {
+            return false;
+        }
+        if (argTypes.containsKey("language") && argTypes.get("language") != constant) {
+            return false;
+        }
+        SourceType textType = argTypes.get("text");
+        if ("Constant".equals(name)) {
+            return textType == null || textType == constant;
+        }
+        return "Literal".equals(name) && textType == constant;
+    }
+
     private GeneratedValue fromCustomGenerator(GeneratorSpec generator, ArgValues argValues) {
         String className = generator.custom.generatorClass;
         try {
@@ -236,7 +269,7 @@ public class X3MLGeneratorPolicy implements Generator {
                         generator, argument
                 ));
             }
-            result = result.replace(String.format("{%s}", argument), argValue.string);
+            result = result.replace("{" + argument + "}", argValue.string);
             if (language == null) language = argValue.language;
         }
         language = getLanguage(language, argValues); // perhaps override
@@ -279,11 +312,15 @@ public class X3MLGeneratorPolicy implements Generator {
         }
     }
 
-    private static List<String> getVariables(String pattern) {
-        Matcher braces = BRACES.matcher(pattern);
-        List<String> arguments = new ArrayList<String>();
-        while (braces.find()) {
-            Collections.addAll(arguments, braces.group(1).split(","));
+    private List<String> getVariables(String pattern) {
+        List<String> arguments = variablesMap.get(pattern);
+        if (arguments == null) {
+            Matcher braces = BRACES.matcher(pattern);
+            arguments = new ArrayList<String>();
+            while (braces.find()) {
+                Collections.addAll(arguments, braces.group(1).split(","));
+            }
+            variablesMap.put(pattern, arguments);
         }
         return arguments;
     }
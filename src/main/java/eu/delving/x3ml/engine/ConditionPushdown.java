@@ -0,0 +1,290 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import org.w3c.dom.Node;
+
+import javax.xml.namespace.NamespaceContext;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static eu.delving.x3ml.X3MLEngine.exception;
+import static eu.delving.x3ml.engine.X3ML.Condition;
+import static eu.delving.x3ml.engine.X3ML.DomainElement;
+import static eu.delving.x3ml.engine.X3ML.LinkElement;
+import static eu.delving.x3ml.engine.X3ML.Mapping;
+import static eu.delving.x3ml.engine.X3ML.RangeElement;
+import static eu.delving.x3ml.engine.X3ML.RootElement;
+
+/**
+ * Conditions on domain and range nodes are moved into the source expression
+ * as a predicate where xpath can say exactly the same thing, so the nodes
+ * which fail are never selected and no contexts are built for them.
+ * <p/>
+ * That is the case for exists and equals on plain paths, and for and, or,
+ * and not made of them. The planner runs when the engine is loaded and
+ * reports what it decided for every condition it saw.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class ConditionPushdown {
+
+    private static final Pattern QNAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_.\\-]*(:[A-Za-z_][A-Za-z0-9_.\\-]*)?");
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    public static ConditionPushdown plan(RootElement rootElement, NamespaceContext namespaceContext) {
+        ConditionPushdown pushdown = new ConditionPushdown();
+        if (rootElement.mappings == null) {
+            return pushdown;
+        }
+        int mappingNumber = 0;
+        for (Mapping mapping : rootElement.mappings) {
+            mappingNumber++;
+            DomainElement domain = mapping.domain;
+            if (domain.source_node != null && domain.target_node != null && domain.target_node.condition != null) {
+                String location = String.format("mapping %d domain %s", mappingNumber, domain.source_node.expression);
+                domain.filteredSource = pushdown.push(location, domain.source_node.expression, domain.target_node.condition, namespaceContext);
+            }
+            if (mapping.links == null) {
+                continue;
+            }
+            int linkNumber = 0;
+            for (LinkElement link : mapping.links) {
+                linkNumber++;
+                RangeElement range = link.range;
+                if (range == null || range.source_node == null || range.target_node == null || range.target_node.condition == null) {
+                    continue;
+                }
+                String location = String.format("mapping %d link %d range %s", mappingNumber, linkNumber, range.source_node.expression);
+                String relation = link.path.source_relation.relation.expression;
+                if (link.path.source_relation.node != null || relation.contains("==")) {
+                    pushdown.entries.add(new Entry(location, null, "range of a join"));
+                    continue;
+                }
+                String expression = range.source_node.expression.equals(relation) ? "" : relation;
+                range.filteredSource = pushdown.push(location, expression, range.target_node.condition, namespaceContext);
+            }
+        }
+        return pushdown;
+    }
+
+    public List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries);
+    }
+
+    public String toString() {
+        StringBuilder out = new StringBuilder("ConditionPushdown");
+        for (Entry entry : entries) {
+            out.append("\n  ").append(entry);
+        }
+        return out.toString();
+    }
+
+    private String push(String location, String expression, Condition condition, NamespaceContext namespaceContext) {
+        try {
+            String predicate = predicate(condition, namespaceContext);
+            String filtered = expression.isEmpty() ? "self::node()[" + predicate + "]" : "(" + expression + ")[" + predicate + "]";
+            entries.add(new Entry(location, filtered, null));
+            return filtered;
+        }
+        catch (CannotPush e) {
+            entries.add(new Entry(location, null, e.getMessage()));
+            return null;
+        }
+    }
+
+    private static String predicate(Condition condition, NamespaceContext namespaceContext) throws CannotPush {
+        List<String> parts = new ArrayList<String>();
+        if (condition.exists != null) {
+            String path = condition.exists.expression;
+            parts.add(hasValue(path, namespaceContext) ? "normalize-space((" + path + ")[1]) != ''" : "false()");
+        }
+        if (condition.equals != null) {
+            String path = condition.equals.expression, value = condition.equals.value;
+            if (value == null) {
+                throw new CannotPush("equals without a value");
+            }
+            if (hasValue(path, namespaceContext)) {
+                for (int walk = 0; walk < value.length(); walk++) {
+                    if (value.charAt(walk) <= ' ') {
+                        throw new CannotPush("equals a value with whitespace");
+                    }
+                }
+                parts.add("normalize-space((" + path + ")[1]) = " + literal(value));
+            }
+            else {
+                parts.add(value.isEmpty() ? "true()" : "false()");
+            }
+        }
+        if (condition.and != null) {
+            parts.add(combine(condition.and.list, " and ", namespaceContext));
+        }
+        if (condition.or != null) {
+            parts.add(combine(condition.or.list, " or ", namespaceContext));
+        }
+        if (condition.not != null) {
+            parts.add("not(" + predicate(condition.not.condition, namespaceContext) + ")");
+        }
+        if (parts.isEmpty()) {
+            return "true()";
+        }
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        return "(" + join(parts, ") and (") + ")";
+    }
+
+    private static String combine(List<Condition> conditions, String operator, NamespaceContext namespaceContext) throws CannotPush {
+        List<String> parts = new ArrayList<String>();
+        for (Condition condition : conditions) {
+            parts.add(predicate(condition, namespaceContext));
+        }
+        return "(" + join(parts, ")" + operator + "(") + ")";
+    }
+
+    /**
+     * Conditions look at the value of the first node a path finds, which only
+     * text and attribute nodes have, so a plain path tells whether the value
+     * can ever be there. Anything other than a plain path is not pushed down.
+     */
+
+    private static boolean hasValue(String path, NamespaceContext namespaceContext) throws CannotPush {
+        if (path == null || path.isEmpty()) {
+            throw new CannotPush("value of the node itself");
+        }
+        String[] steps = path.split("/", -1);
+        for (int walk = 0; walk < steps.length; walk++) {
+            String step = steps[walk];
+            boolean last = walk == steps.length - 1;
+            if (step.equals(".") && last) {
+                throw new CannotPush("value of the node itself");
+            }
+            else if (step.equals(".") || step.equals("..")) {
+                if (last) return false;
+            }
+            else if (last && step.equals("text()")) {
+                return true;
+            }
+            else if (last && step.startsWith("@")) {
+                checkName(step.substring(1), path, namespaceContext);
+                return true;
+            }
+            else {
+                checkName(step, path, namespaceContext);
+                if (last) return false;
+            }
+        }
+        return false;
+    }
+
+    private static void checkName(String name, String path, NamespaceContext namespaceContext) throws CannotPush {
+        if (!QNAME.matcher(name).matches()) {
+            throw new CannotPush("not a plain path: " + path);
+        }
+        int colon = name.indexOf(':');
+        if (colon > 0) {
+            String uri = namespaceContext == null ? null : namespaceContext.getNamespaceURI(name.substring(0, colon));
+            if (uri == null || uri.isEmpty()) {
+                throw new CannotPush("unknown prefix in " + path);
+            }
+        }
+    }
+
+    private static String literal(String value) throws CannotPush {
+        if (value.indexOf('\'') < 0) {
+            return "'" + value + "'";
+        }
+        if (value.indexOf('"') < 0) {
+            return "\"" + value + "\"";
+        }
+        throw new CannotPush("equals a value with both kinds of quote");
+    }
+
+    private static String join(List<String> parts, String separator) {
+        StringBuilder out = new StringBuilder();
+        for (String part : parts) {
+            if (out.length() > 0) {
+                out.append(separator);
+            }
+            out.append(part);
+        }
+        return out.toString();
+    }
+
+    public static class Entry {
+        public final String location;
+        public final String filteredSource;
+        public final String reason;
+
+        private Entry(String location, String filteredSource, String reason) {
+            this.location = location;
+            this.filteredSource = filteredSource;
+            this.reason = reason;
+        }
+
+        public boolean isPushed() {
+            return filteredSource != null;
+        }
+
+        public String toString() {
+            return location + (isPushed() ? ": pushed down as " + filteredSource : ": not pushed down, " + reason);
+        }
+    }
+
+    /**
+     * Where each node stood among all the nodes of the unfiltered source
+     * expression, worked out only when a generator asks for a position.
+     */
+
+    public static class Positions {
+        private final SourceInput input;
+        private final Node context;
+        private final String expression;
+        private Map<Node, Integer> positions;
+
+        public Positions(SourceInput input, Node context, String expression) {
+            this.input = input;
+            this.context = context;
+            this.expression = expression;
+        }
+
+        public int of(Node node) {
+            if (positions == null) {
+                positions = new HashMap<Node, Integer>();
+                int position = 1;
+                for (Node candidate : input.nodeList(context, expression)) {
+                    positions.put(candidate, position++);
+                }
+            }
+            Integer position = positions.get(node);
+            if (position == null) {
+                throw exception("Node not found among " + expression);
+            }
+            return position;
+        }
+    }
+
+    private static class CannotPush extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private CannotPush(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Generators whose value cannot depend on the source node are only called
+ * once per execution, and the literal they give is reused. Here the engine
+ * gathers how many calls were saved that way in each mapping, numbered from
+ * zero in the order they appear.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class ConstantFolds {
+
+    private final Map<Integer, long[]> folded = new TreeMap<Integer, long[]>();
+
+    public synchronized void record(int mappingNumber, long count) {
+        if (count == 0) {
+            return;
+        }
+        long[] total = folded.get(mappingNumber);
+        if (total == null) {
+            folded.put(mappingNumber, total = new long[1]);
+        }
+        total[0] += count;
+    }
+
+    public synchronized long getFolded(int mappingNumber) {
+        long[] total = folded.get(mappingNumber);
+        return total == null ? 0 : total[0];
+    }
+
+    public synchronized long getFolded() {
+        long sum = 0;
+        for (long[] total : folded.values()) {
+            sum += total[0];
+        }
+        return sum;
+    }
+
+    public synchronized String toString() {
+        StringBuilder out = new StringBuilder("ConstantFolds");
+        for (Map.Entry<Integer, long[]> entry : folded.entrySet()) {
+            out.append("\n  mapping ").append(entry.getKey()).append(": ").append(entry.getValue()[0]).append(" generator calls folded");
+        }
+        return out.toString();
+    }
+}
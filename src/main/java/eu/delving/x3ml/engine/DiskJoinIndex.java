@@ -0,0 +1,365 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static eu.delving.x3ml.X3MLEngine.exception;
+
+/**
+ * A join index for a range file too big to be held in memory.
+ * <p/>
+ * A first pass streams through the file, copying every range record to a
+ * data file and noting its key. The keys go into an open addressing hash
+ * table in a memory-mapped file, where every slot holds the hash of a key and
+ * the position of the record in the data file. Records are only parsed again
+ * when they are looked up, through the backend of the execution so that they
+ * are nodes of the same kind as the source, and the caller keeps what it has
+ * resolved so that a record is the same node every time within one execution.
+ * <p/>
+ * The range expression must select the records by name, either anywhere
+ * (//person) or by absolute path (/persons/person), and records may not be
+ * nested.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class DiskJoinIndex {
+
+    private static final int SLOT_SIZE = 8 + 8 + 4; // hash, offset, length
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final DocumentBuilderFactory DOCUMENT_FACTORY = DocumentBuilderFactory.newInstance();
+    private final String keyPath;
+    private final XPathCache xpathCache;
+    private final NamespaceContext namespaceContext;
+    private final File dataFile, tableFile;
+    private final RandomAccessFile data;
+    private final MappedByteBuffer table;
+    private final int capacity, recordCount;
+
+    static {
+        OUTPUT_FACTORY.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+        DOCUMENT_FACTORY.setNamespaceAware(true);
+    }
+
+    private DiskJoinIndex(String keyPath, XPathCache xpathCache, NamespaceContext namespaceContext, File dataFile, File tableFile, int capacity, int recordCount) throws IOException {
+        this.keyPath = keyPath;
+        this.xpathCache = xpathCache;
+        this.namespaceContext = namespaceContext;
+        this.dataFile = dataFile;
+        this.tableFile = tableFile;
+        this.capacity = capacity;
+        this.recordCount = recordCount;
+        this.data = new RandomAccessFile(dataFile, "r");
+        RandomAccessFile tableAccess = new RandomAccessFile(tableFile, "r");
+        try {
+            this.table = tableAccess.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, (long) capacity * SLOT_SIZE);
+        }
+        finally {
+            tableAccess.close();
+        }
+    }
+
+    public static DiskJoinIndex build(File source, String rangeExpression, String keyPath, XPathCache xpathCache, NamespaceContext namespaceContext, File directory) {
+        RecordPath recordPath = new RecordPath(rangeExpression, namespaceContext);
+        try {
+            File dataFile = File.createTempFile("x3ml-join-", ".data", directory);
+            File entryFile = File.createTempFile("x3ml-join-", ".entries", directory);
+            File tableFile = File.createTempFile("x3ml-join-", ".table", directory);
+            dataFile.deleteOnExit();
+            tableFile.deleteOnExit();
+            int recordCount = writeRecords(source, recordPath, keyPath, xpathCache, namespaceContext, dataFile, entryFile);
+            long capacity = 16;
+            while (capacity < recordCount * 2L) capacity *= 2;
+            if (capacity * SLOT_SIZE > Integer.MAX_VALUE) {
+                throw exception("Too many records for a disk join: " + recordCount);
+            }
+            writeTable(entryFile, tableFile, (int) capacity, recordCount);
+            if (!entryFile.delete()) {
+                entryFile.deleteOnExit();
+            }
+            return new DiskJoinIndex(keyPath, xpathCache, namespaceContext, dataFile, tableFile, (int) capacity, recordCount);
+        }
+        catch (IOException e) {
+            throw exception("Unable to build disk join on " + source, e);
+        }
+        catch (XMLStreamException e) {
+            throw exception("Unable to read " + source, e);
+        }
+    }
+
+    /**
+     * @param resolved the records this execution has already built, by offset
+     * @param factory builds the records in the backend of the execution
+     * @param input evaluates the key path on those records
+     */
+
+    public List<Node> lookup(String keyValue, Map<Long, Node> resolved, SourceInput.Factory factory, SourceInput input) {
+        long hash = hash(keyValue);
+        List<Node> nodes = new ArrayList<Node>();
+        DocumentBuilder builder = null;
+        for (int slot = (int) (hash & (capacity - 1)); ; slot = (slot + 1) & (capacity - 1)) {
+            int position = slot * SLOT_SIZE;
+            int length = table.getInt(position + 16);
+            if (length == 0) {
+                break;
+            }
+            if (table.getLong(position) != hash) {
+                continue;
+            }
+            long offset = table.getLong(position + 8);
+            Node record = resolved.get(offset);
+            if (record == null) {
+                if (builder == null) {
+                    builder = newDocumentBuilder();
+                }
+                record = factory.create(readRecord(builder, offset, length), xpathCache, namespaceContext, null).rootNode();
+                resolved.put(offset, record);
+            }
+            // another key may have the same hash
+            if (input.valueAt(record, keyPath).equals(keyValue)) {
+                nodes.add(record);
+            }
+        }
+        return nodes;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public long getDataBytes() {
+        return dataFile.length();
+    }
+
+    public void close() {
+        try {
+            data.close();
+        }
+        catch (IOException e) {
+            // nothing to be done
+        }
+        dataFile.delete();
+        tableFile.delete(); // may fail while the table is still mapped, then it goes on exit
+    }
+
+    public String toString() {
+        return String.format("DiskJoinIndex(records=%d, data=%dKB, table=%dKB)", recordCount, getDataBytes() / 1024, (long) capacity * SLOT_SIZE / 1024);
+    }
+
+    private static int writeRecords(File source, RecordPath recordPath, String keyPath, XPathCache xpathCache, NamespaceContext namespaceContext, File dataFile, File entryFile) throws IOException, XMLStreamException {
+        InputStream in = new BufferedInputStream(new FileInputStream(source));
+        OutputStream dataOut = new BufferedOutputStream(new FileOutputStream(dataFile));
+        DataOutputStream entries = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(entryFile)));
+        try {
+            XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+            List<QName> path = new ArrayList<QName>();
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+            DocumentBuilder builder = newDocumentBuilder();
+            XPathInput keys = null; // evaluates the key on every record
+            XMLEventWriter recordWriter = null;
+            int recordDepth = 0, recordCount = 0;
+            long offset = 0;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    path.add(start.getName());
+                    if (recordWriter == null && recordPath.matches(path)) {
+                        recordBytes.reset();
+                        recordWriter = OUTPUT_FACTORY.createXMLEventWriter(recordBytes, "UTF-8");
+                        recordDepth = path.size();
+                    }
+                }
+                if (recordWriter != null && !event.isStartDocument() && !event.isEndDocument()) {
+                    recordWriter.add(event);
+                }
+                if (event.isEndElement()) {
+                    if (recordWriter != null && path.size() == recordDepth) {
+                        recordWriter.close();
+                        byte[] bytes = recordBytes.toByteArray();
+                        Element record = parse(builder, bytes);
+                        if (keys == null) {
+                            keys = new XPathInput(record, xpathCache, namespaceContext, null);
+                        }
+                        String key = keys.valueAt(record, keyPath);
+                        dataOut.write(bytes);
+                        entries.writeLong(hash(key));
+                        entries.writeLong(offset);
+                        entries.writeInt(bytes.length);
+                        offset += bytes.length;
+                        recordCount++;
+                        recordWriter = null;
+                    }
+                    path.remove(path.size() - 1);
+                }
+            }
+            reader.close();
+            return recordCount;
+        }
+        finally {
+            in.close();
+            dataOut.close();
+            entries.close();
+        }
+    }
+
+    private static void writeTable(File entryFile, File tableFile, int capacity, int recordCount) throws IOException {
+        RandomAccessFile tableAccess = new RandomAccessFile(tableFile, "rw");
+        DataInputStream entries = new DataInputStream(new BufferedInputStream(new FileInputStream(entryFile)));
+        try {
+            tableAccess.setLength((long) capacity * SLOT_SIZE);
+            MappedByteBuffer table = tableAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * SLOT_SIZE);
+            for (int walk = 0; walk < recordCount; walk++) {
+                long hash = entries.readLong();
+                long offset = entries.readLong();
+                int length = entries.readInt();
+                int slot = (int) (hash & (capacity - 1));
+                while (table.getInt(slot * SLOT_SIZE + 16) != 0) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                table.putLong(slot * SLOT_SIZE, hash);
+                table.putLong(slot * SLOT_SIZE + 8, offset);
+                table.putInt(slot * SLOT_SIZE + 16, length);
+            }
+            table.force();
+        }
+        finally {
+            entries.close();
+            tableAccess.close();
+        }
+    }
+
+    private Element readRecord(DocumentBuilder builder, long offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            while (buffer.hasRemaining()) {
+                if (data.getChannel().read(buffer, offset + buffer.position()) < 0) {
+                    throw exception("Join record truncated at " + offset + " in " + dataFile);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw exception("Unable to read join record at " + offset + " in " + dataFile, e);
+        }
+        return parse(builder, bytes);
+    }
+
+    private static DocumentBuilder newDocumentBuilder() {
+        try {
+            synchronized (DOCUMENT_FACTORY) {
+                return DOCUMENT_FACTORY.newDocumentBuilder();
+            }
+        }
+        catch (Exception e) {
+            throw exception("Unable to create a document builder", e);
+        }
+    }
+
+    private static Element parse(DocumentBuilder builder, byte[] bytes) {
+        try {
+            return builder.parse(new ByteArrayInputStream(bytes)).getDocumentElement();
+        }
+        catch (Exception e) {
+            throw exception("Unable to parse join record", e);
+        }
+    }
+
+    // FNV-1a, 64 bit
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int walk = 0; walk < key.length(); walk++) {
+            hash ^= key.charAt(walk);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static class RecordPath {
+        private final boolean anywhere;
+        private final List<QName> steps = new ArrayList<QName>();
+
+        private RecordPath(String expression, NamespaceContext namespaceContext) {
+            String path;
+            if (expression.startsWith("//")) {
+                anywhere = true;
+                path = expression.substring(2);
+            }
+            else if (expression.startsWith("/")) {
+                anywhere = false;
+                path = expression.substring(1);
+            }
+            else {
+                throw exception("A disk join needs an absolute range expression: " + expression);
+            }
+            for (String step : path.split("/")) {
+                if (!step.matches("[A-Za-z_][A-Za-z0-9_.\\-]*(:[A-Za-z_][A-Za-z0-9_.\\-]*)?")) {
+                    throw exception("Range expression too complex for a disk join: " + expression);
+                }
+                int colon = step.indexOf(':');
+                if (colon < 0) {
+                    steps.add(new QName(step));
+                }
+                else {
+                    steps.add(new QName(namespaceContext.getNamespaceURI(step.substring(0, colon)), step.substring(colon + 1)));
+                }
+            }
+            if (anywhere && steps.size() > 1) {
+                throw exception("Range expression too complex for a disk join: " + expression);
+            }
+        }
+
+        boolean matches(List<QName> path) {
+            if (anywhere) {
+                return path.get(path.size() - 1).equals(steps.get(0));
+            }
+            return path.equals(steps);
+        }
+    }
+}
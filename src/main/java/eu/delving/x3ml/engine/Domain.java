@@ -19,8 +19,6 @@ import org.w3c.dom.Node;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
 import static eu.delving.x3ml.X3MLEngine.exception;
 import static eu.delving.x3ml.engine.X3ML.DomainElement;
@@ -38,25 +36,40 @@ public class Domain extends GeneratorContext {
 
     public final DomainElement domain;
     public EntityResolver entityResolver;
-    private Map<String, X3ML.GeneratedValue> variables = new TreeMap<String, X3ML.GeneratedValue>();
+    private final GeneratedValue[] variables;
 
-    public Domain(Root.Context context, DomainElement domain, Node node, int index) {
+    private final boolean conditionPushedDown;
+
+    public Domain(Root.Context context, DomainElement domain, int slotCount, Node node, int index) {
         super(context, null, node, index);
         this.domain = domain;
+        this.variables = new GeneratedValue[slotCount];
+        this.conditionPushedDown = false;
+    }
+
+    public Domain(Root.Context context, DomainElement domain, int slotCount, Node node, ConditionPushdown.Positions positions) {
+        super(context, null, node, positions);
+        this.domain = domain;
+        this.variables = new GeneratedValue[slotCount];
+        this.conditionPushedDown = true;
     }
 
     @Override
-    public GeneratedValue get(String variable) {
-        return variables.get(variable);
+    public GeneratedValue get(int variableSlot) {
+        return variables[variableSlot];
     }
 
     @Override
-    public void put(String variable, GeneratedValue generatedValue) {
-        variables.put(variable, generatedValue);
+    public void put(int variableSlot, GeneratedValue generatedValue) {
+        variables[variableSlot] = generatedValue;
     }
 
     public boolean resolve() {
-        if (conditionFails(domain.target_node.condition, this)) {
+        if (entityResolver != null) { // resolved again before its links
+            context.output().avoidGeneratorCalls(entityResolver.getResolveCalls());
+            return entityResolver.resolve();
+        }
+        if (!conditionPushedDown && conditionFails(domain.target_node.condition, this)) {
             return false;
         }
         entityResolver = new EntityResolver(context.output(), domain.target_node.entityElement, this);
@@ -68,10 +81,6 @@ public class Domain extends GeneratorContext {
 
         PathElement pathElement = linkElement.path;
 
-        System.out.println("Node Inside" + node_inside);
-
-        String pathExpression = pathElement.source_relation.relation.expression;
-
         RangeElement rangeElement = linkElement.range;
 
         String rangeExpression = rangeElement.source_node.expression;
@@ -81,8 +90,24 @@ public class Domain extends GeneratorContext {
         }
         List<Link> links = new ArrayList<Link>();
         int index = 1;
-        int index1 = 1;
-        int index2 = 1;
+
+        if (IntermediateIndex.applies(node_inside)) {
+            IntermediateIndex intermediate = context.input().intermediateIndex(node_inside, intermediateFirst, intermediateSecond);
+            String domainKey = context.input().valueAt(node, domainForeignKey + "/text()");
+            for (String secondKey : intermediate.getSecondKeys(domainKey)) {
+                List<Node> rangeNodes = context.rangeNodes(rangeExpression, rangePrimaryKey + "/text()", secondKey);
+                for (Node rangeNode : rangeNodes) {
+                    Path path = new Path(context, this, pathElement, node, index);
+                    Range range = new Range(context, path, rangeElement, rangeNode, index);
+                    Link link = new Link(path, range);
+                    if (link.resolve()) {
+                        links.add(link);
+                    }
+                    index++;
+                }
+            }
+            return links;
+        }
 
         int size = context.input().countNodes(node.getParentNode(), node_inside + "//" + intermediateFirst + "/text()");
 
@@ -92,12 +117,10 @@ public class Domain extends GeneratorContext {
                     node_inside + "[" + count + "]//" + intermediateFirst + "/text()")
                     .equals(context.input().valueAt(node, domainForeignKey + "/text()"))) {
 
-                List<Node> rangeNodes = context.input().rootNodeList(
-                        domain.source_node.expression,
-                        pathExpression,
-                        context.input().valueAt(node, node_inside + "[" + count + "]//" + intermediateSecond + "/text()"),
+                List<Node> rangeNodes = context.rangeNodes(
                         rangeExpression,
-                        rangePrimaryKey + "/text()"
+                        rangePrimaryKey + "/text()",
+                        context.input().valueAt(node, node_inside + "[" + count + "]//" + intermediateSecond + "/text()")
                 );
 
                 for (Node rangeNode : rangeNodes) {
@@ -122,8 +145,6 @@ public class Domain extends GeneratorContext {
 
     public List<Link> createLinkContexts(LinkElement linkElement, String domainForeignKey, String rangePrimaryKey) {
         PathElement pathElement = linkElement.path;
-
-        String pathExpression = pathElement.source_relation.relation.expression;
         RangeElement rangeElement = linkElement.range;
         String rangeExpression = rangeElement.source_node.expression;
         if (rangeExpression == null) {
@@ -131,13 +152,11 @@ public class Domain extends GeneratorContext {
         }
         List<Link> links = new ArrayList<Link>();
         int index = 1;
-        List<Node> rangeNodes = context.input().rootNodeList(
-                domain.source_node.expression,
-                pathExpression,
-                context.input().valueAt(node, domainForeignKey + "/text()"),
-                rangeExpression,
-                rangePrimaryKey + "/text()"
-        );
+        String keyValue = context.input().valueAt(node, domainForeignKey + "/text()");
+        MergeJoin mergeJoin = context.mergeJoin(linkElement, domain.source_node.expression, domainForeignKey, rangeExpression, rangePrimaryKey);
+        List<Node> rangeNodes = mergeJoin != null ?
+                mergeJoin.lookup(keyValue) :
+                context.rangeNodes(rangeExpression, rangePrimaryKey + "/text()", keyValue);
         for (Node rangeNode : rangeNodes) {
             Path path = new Path(context, this, pathElement, node, index);
             Range range = new Range(context, path, rangeElement, rangeNode, index);
@@ -33,7 +33,9 @@ import static eu.delving.x3ml.engine.X3ML.TypeElement;
  * The entity resolver creates the related model elements by calling generator
  * functions.
  * <p/>
- * Handles label nodes and additional nodes with their properties
+ * Handles label nodes and additional nodes with their properties. The labels
+ * only appear in the model when the entity is linked, so their generators
+ * wait until then, and a resolver that is thrown away never runs them.
  *
  * @author Gerald de Jong <gerald@delving.eu>
  */
@@ -47,6 +49,8 @@ public class EntityResolver {
     public List<Resource> resources;
     public Literal literal;
     private boolean failed;
+    private boolean linked;
+    private long linkedStatements;
 
     EntityResolver(ModelOutput modelOutput, X3ML.EntityElement entityElement, GeneratorContext generatorContext) {
         this.modelOutput = modelOutput;
@@ -62,11 +66,12 @@ public class EntityResolver {
             return false;
         }
         if (resources == null) {
-            StringBuilder unique = new StringBuilder();
-            for (TypeElement typeElement : entityElement.typeElements) {
-                unique.append('-').append(typeElement.tag);
+            GeneratorElement instanceGenerator = entityElement.instanceGenerator;
+            boolean constant = instanceGenerator != null && instanceGenerator.isConstant(generatorContext.context.policy()) && entityElement.variable == null;
+            if (constant && (literal = modelOutput.getFoldedLiteral(instanceGenerator)) != null) {
+                return true;
             }
-            GeneratedValue generatedValue = entityElement.getInstance(generatorContext, unique.toString());
+            GeneratedValue generatedValue = entityElement.getInstance(generatorContext, entityElement.getTypeSignature());
             if (generatedValue == null) {
                 failed = true;
                 return false;
@@ -79,11 +84,16 @@ public class EntityResolver {
                             resources.add(modelOutput.createTypedResource(generatedValue.text, typeElement));
                         }
                     }
-                    labelNodes = createLabelNodes(entityElement.labelGenerators);
+                    if (entityElement.labelGenerators != null) {
+                        modelOutput.deferGeneratorCalls(entityElement.labelGenerators.size());
+                    }
                     additionalNodes = createAdditionalNodes(entityElement.additionals);
                     break;
                 case LITERAL:
                     literal = modelOutput.createLiteral(generatedValue.text, generatedValue.language);
+                    if (constant) {
+                        modelOutput.putFoldedLiteral(instanceGenerator, literal);
+                    }
                     break;
                 case TYPED_LITERAL:
                     if (entityElement.typeElements.size() != 1) {
@@ -99,6 +109,23 @@ public class EntityResolver {
         return hasResources() || hasLiteral();
     }
 
+    /**
+     * @return how many generator calls resolving this entity afresh would take
+     */
+
+    int getResolveCalls() {
+        int calls = hasLiteral() ? 1 : 0;
+        if (entityElement.labelGenerators != null) {
+            calls += entityElement.labelGenerators.size();
+        }
+        if (additionalNodes != null) {
+            for (AdditionalNode additionalNode : additionalNodes) {
+                calls += additionalNode.additionalEntityResolver.getResolveCalls();
+            }
+        }
+        return calls;
+    }
+
     boolean hasResources() {
         return resources != null && !resources.isEmpty();
     }
@@ -107,11 +134,32 @@ public class EntityResolver {
         return literal != null;
     }
 
+    /**
+     * The labels and additionals only need to be added to the model once,
+     * no matter how many paths and ranges lead back to this entity.
+     */
+
     void link() {
         if (resources == null) {
-            System.out.println("No resources!");
+            Trace trace = generatorContext.context.trace();
+            int mappingNumber = generatorContext.context.mappingNumber();
+            if (trace.isOn(Trace.Level.WARN, mappingNumber)) {
+                trace.event(Trace.Level.WARN, "no-resources", mappingNumber).with("node", generatorContext.toString()).write();
+            }
+            return;
+        }
+        if (linked) {
+            modelOutput.suppress(linkedStatements);
             return;
         }
+        linked = true;
+        if (labelNodes == null) {
+            labelNodes = createLabelNodes(entityElement.labelGenerators);
+            if (entityElement.labelGenerators != null) {
+                modelOutput.makeGeneratorCalls(entityElement.labelGenerators.size());
+            }
+        }
+        long before = modelOutput.getEmitted();
         for (Resource resource : resources) {
             if (labelNodes != null) {
                 for (LabelNode labelNode : labelNodes) {
@@ -125,6 +173,7 @@ public class EntityResolver {
                 }
             }
         }
+        linkedStatements = modelOutput.getEmitted() - before;
     }
 
     private List<AdditionalNode> createAdditionalNodes(List<Additional> additionalList) {
@@ -164,10 +213,10 @@ public class EntityResolver {
             additionalEntityResolver.link();
             if (additionalEntityResolver.hasResources()) {
                 for (Resource resource : additionalEntityResolver.resources) {
-                    fromResource.addProperty(property, resource);
+                    modelOutput.addStatement(fromResource, property, resource);
                 }
             } else if (additionalEntityResolver.hasLiteral()) {
-                fromResource.addLiteral(property, additionalEntityResolver.literal);
+                modelOutput.addStatement(fromResource, property, additionalEntityResolver.literal);
             } else {
                 throw exception("Cannot link without property or literal");
             }
@@ -192,14 +241,19 @@ public class EntityResolver {
         public final GeneratorElement generator;
         public Property property;
         public Literal literal;
+        private boolean constant;
 
         private LabelNode(GeneratorElement generator) {
             this.generator = generator;
         }
 
         public boolean resolve() {
-            property = modelOutput.createProperty(new TypeElement("rdfs:label", "http://www.w3.org/2000/01/rdf-schema#"));
-            GeneratedValue generatedValue = generatorContext.getInstance(generator, null, "-" + generator.name); //todo: are you sure?
+            property = modelOutput.getLabelProperty();
+            constant = generator.isConstant(generatorContext.context.policy());
+            if (constant && (literal = modelOutput.getFoldedLiteral(generator)) != null) {
+                return true;
+            }
+            GeneratedValue generatedValue = generatorContext.getInstance(generator, -1, generator.getLabelSignature()); //todo: are you sure?
             if (generatedValue == null) {
                 return false;
             }
@@ -208,13 +262,16 @@ public class EntityResolver {
                     throw exception("Label node must produce a literal");
                 case LITERAL:
                     literal = modelOutput.createLiteral(generatedValue.text, generatedValue.language);
+                    if (constant) {
+                        modelOutput.putFoldedLiteral(generator, literal);
+                    }
                     return true;
             }
             return false;
         }
 
         public void linkFrom(Resource fromResource) {
-            fromResource.addLiteral(property, literal);
+            modelOutput.addStatement(fromResource, property, literal);
         }
     }
 
@@ -0,0 +1,290 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import org.w3c.dom.Node;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static eu.delving.x3ml.engine.X3ML.ArgBinding;
+import static eu.delving.x3ml.engine.X3ML.ArgValue;
+import static eu.delving.x3ml.engine.X3ML.GeneratorElement;
+import static eu.delving.x3ml.engine.X3ML.Source;
+import static eu.delving.x3ml.engine.X3ML.SourceType;
+
+/**
+ * The links of a mapping often ask the same questions of the same nodes,
+ * with conditions, labels and source relations repeated from link to link.
+ * For the mappings enabled here, results are remembered by node and
+ * expression while one domain node is processed, and forgotten when the
+ * next one begins.
+ * <p/>
+ * Mappings are numbered from zero in the order they appear. The engine
+ * gathers the hits and misses of every execution here.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class ExpressionMemo {
+
+    private final Map<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+    private boolean all;
+
+    public synchronized void enable(int mappingNumber) {
+        if (!entries.containsKey(mappingNumber)) {
+            entries.put(mappingNumber, new Entry(mappingNumber));
+        }
+    }
+
+    public synchronized void enableAll() {
+        all = true;
+    }
+
+    public synchronized boolean isEnabled(int mappingNumber) {
+        return all || entries.containsKey(mappingNumber);
+    }
+
+    public synchronized void record(int mappingNumber, long hits, long misses) {
+        Entry entry = entries.get(mappingNumber);
+        if (entry == null) {
+            entries.put(mappingNumber, entry = new Entry(mappingNumber));
+        }
+        entry.hits += hits;
+        entry.misses += misses;
+    }
+
+    public synchronized long getHits() {
+        long hits = 0;
+        for (Entry entry : entries.values()) {
+            hits += entry.hits;
+        }
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        long misses = 0;
+        for (Entry entry : entries.values()) {
+            misses += entry.misses;
+        }
+        return misses;
+    }
+
+    public double getHitRate() {
+        return rate(getHits(), getMisses());
+    }
+
+    public synchronized double getHitRate(int mappingNumber) {
+        Entry entry = entries.get(mappingNumber);
+        return entry == null ? 0 : rate(entry.hits, entry.misses);
+    }
+
+    public String toString() {
+        StringBuilder out = new StringBuilder("ExpressionMemo");
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                out.append("\n  ").append(entry);
+            }
+        }
+        return out.toString();
+    }
+
+    private static double rate(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    private static class Entry {
+        final int mappingNumber;
+        long hits;
+        long misses;
+
+        Entry(int mappingNumber) {
+            this.mappingNumber = mappingNumber;
+        }
+
+        public String toString() {
+            return String.format("mapping %d: hits=%d, misses=%d, rate=%.1f%%", mappingNumber, hits, misses, 100 * rate(hits, misses));
+        }
+    }
+
+    /**
+     * A view of the source input which remembers what it has been asked
+     * until it is cleared. Lists handed out are shared between callers, who
+     * only ever read them.
+     */
+
+    public static class Input implements SourceInput {
+        private final SourceInput input;
+        private final Map<Key, Object> results = new HashMap<Key, Object>();
+        private long hits, misses;
+
+        public Input(SourceInput input) {
+            this.input = input;
+        }
+
+        public void clear() {
+            results.clear();
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public void resetCounts() {
+            hits = misses = 0;
+        }
+
+        @Override
+        public Node rootNode() {
+            return input.rootNode();
+        }
+
+        @Override
+        public List<Node> nodeList(Node context, String expression) {
+            Key key = new Key(context, Kind.NODES, expression);
+            @SuppressWarnings("unchecked")
+            List<Node> nodes = (List<Node>) recall(key);
+            if (nodes == null) {
+                results.put(key, nodes = input.nodeList(context, expression));
+            }
+            return nodes;
+        }
+
+        @Override
+        public List<Node> nodeList(Node node, Source source) {
+            if (source == null) {
+                return input.nodeList(node, (Source) null);
+            }
+            return nodeList(node, source.expression);
+        }
+
+        @Override
+        public Node firstNode(Node node, String expression) {
+            Key key = new Key(node, Kind.FIRST, expression);
+            if (results.containsKey(key)) {
+                hits++;
+                return (Node) results.get(key);
+            }
+            misses++;
+            Node first = input.firstNode(node, expression);
+            results.put(key, first);
+            return first;
+        }
+
+        @Override
+        public String valueAt(Node node, String expression) {
+            Key key = new Key(node, Kind.VALUE, expression);
+            String value = (String) recall(key);
+            if (value == null) {
+                results.put(key, value = input.valueAt(node, expression));
+            }
+            return value;
+        }
+
+        @Override
+        public int countNodes(Node node, String expression) {
+            return nodeList(node, expression).size();
+        }
+
+        @Override
+        public ArgValue evaluateArgument(Node node, int index, GeneratorElement generatorElement, String argName, SourceType defaultType) {
+            ArgBinding binding = generatorElement.getBinding(argName);
+            if (binding == null || binding.getType(defaultType) != SourceType.xpath || binding.arg.value.isEmpty()) {
+                return input.evaluateArgument(node, index, generatorElement, argName, defaultType);
+            }
+            Key key = new Key(node, Kind.ARGUMENT, binding.arg.value);
+            ArgValue value = (ArgValue) recall(key);
+            if (value == null) {
+                results.put(key, value = input.evaluateArgument(node, index, generatorElement, argName, defaultType));
+            }
+            return value;
+        }
+
+        @Override
+        public List<Node> rootNodeList(String rangeExpression, String rangeKeyPath, String keyValue) {
+            return input.rootNodeList(rangeExpression, rangeKeyPath, keyValue);
+        }
+
+        @Override
+        public Collection<JoinIndex> getJoinIndexes() {
+            return input.getJoinIndexes();
+        }
+
+        @Override
+        public IntermediateIndex intermediateIndex(String nodeExpression, String firstPath, String secondPath) {
+            return input.intermediateIndex(nodeExpression, firstPath, secondPath);
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return false;
+        }
+
+        @Override
+        public String getLanguage(Node node) {
+            return input.getLanguage(node);
+        }
+
+        private Object recall(Key key) {
+            Object result = results.get(key);
+            if (result == null) {
+                misses++;
+            }
+            else {
+                hits++;
+            }
+            return result;
+        }
+    }
+
+    private enum Kind {
+        NODES, FIRST, VALUE, ARGUMENT
+    }
+
+    private static class Key {
+        final Node node;
+        final Kind kind;
+        final String expression;
+        final int hash;
+
+        Key(Node node, Kind kind, String expression) {
+            this.node = node;
+            this.kind = kind;
+            this.expression = expression == null ? "" : expression;
+            this.hash = (node.hashCode() * 31 + kind.ordinal()) * 31 + this.expression.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash && kind == key.kind && expression.equals(key.expression) && node.equals(key.node);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
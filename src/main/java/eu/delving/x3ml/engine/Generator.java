@@ -15,6 +15,8 @@
 //===========================================================================
 package eu.delving.x3ml.engine;
 
+import java.util.Map;
+
 import static eu.delving.x3ml.engine.X3ML.ArgValue;
 import static eu.delving.x3ml.engine.X3ML.GeneratedValue;
 import static eu.delving.x3ml.engine.X3ML.SourceType;
@@ -45,4 +47,15 @@ public interface Generator {
     }
 
     GeneratedValue generate(String name, ArgValues arguments);
+
+    /**
+     * Tell whether the named generator gives the same value at every node when
+     * its arguments are declared with these types, so it need only run once.
+     *
+     * @param name of the generator
+     * @param argTypes the declared type of each argument, null where none is given
+     * @return true if the value does not depend on the source node
+     */
+
+    boolean isConstant(String name, Map<String, SourceType> argTypes);
 }
@@ -17,7 +17,10 @@ package eu.delving.x3ml.engine;
 
 import org.w3c.dom.Node;
 
+import java.util.Arrays;
+
 import static eu.delving.x3ml.X3MLEngine.exception;
+import static eu.delving.x3ml.engine.X3ML.ArgBinding;
 import static eu.delving.x3ml.engine.X3ML.ArgValue;
 import static eu.delving.x3ml.engine.X3ML.Condition;
 import static eu.delving.x3ml.engine.X3ML.GeneratedValue;
@@ -35,69 +38,122 @@ public abstract class GeneratorContext {
     public final Root.Context context;
     public final GeneratorContext parent;
     public final Node node;
-    public final int index;
+    private int index;
+    private final ConditionPushdown.Positions positions;
 
     protected GeneratorContext(Root.Context context, GeneratorContext parent, Node node, int index) {
         this.context = context;
         this.parent = parent;
         this.node = node;
         this.index = index;
+        this.positions = null;
+    }
+
+    /**
+     * For a node selected by a source with a condition pushed down, whose
+     * index among the unfiltered nodes is only found when it is needed.
+     */
+
+    protected GeneratorContext(Root.Context context, GeneratorContext parent, Node node, ConditionPushdown.Positions positions) {
+        this.context = context;
+        this.parent = parent;
+        this.node = node;
+        this.positions = positions;
+    }
+
+    public int getIndex() {
+        if (index == 0 && positions != null) {
+            index = positions.of(node);
+        }
+        return index;
     }
 
-    public GeneratedValue get(String variable) {
+    public GeneratedValue get(int variableSlot) {
         if (parent == null) {
             throw exception("Parent context missing");
         }
-        return parent.get(variable);
+        return parent.get(variableSlot);
     }
 
-    public void put(String variable, GeneratedValue generatedValue) {
+    public void put(int variableSlot, GeneratedValue generatedValue) {
         if (parent == null) {
             throw exception("Parent context missing");
         }
-        parent.put(variable, generatedValue);
+        parent.put(variableSlot, generatedValue);
     }
 
     public String evaluate(String expression) {
         return context.input().valueAt(node, expression);
     }
 
-    public GeneratedValue getInstance(final GeneratorElement generator, String variable, String unique) {
+    /**
+     * Whether the first node found has a value other than whitespace.
+     */
+
+    public boolean exists(String expression) {
+        String value = nodeValue(expression);
+        if (value == null) {
+            return false;
+        }
+        for (int walk = 0; walk < value.length(); walk++) {
+            if (value.charAt(walk) > ' ') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the first node found has the given value, not counting the
+     * whitespace around it. No node counts as an empty value.
+     */
+
+    public boolean valueEquals(String expression, String value) {
+        String found = nodeValue(expression);
+        if (found == null) {
+            return value.isEmpty();
+        }
+        int start = 0, end = found.length();
+        while (start < end && found.charAt(start) <= ' ') start++;
+        while (end > start && found.charAt(end - 1) <= ' ') end--;
+        return end - start == value.length() && found.regionMatches(start, value, 0, end - start);
+    }
+
+    protected String nodeValue(String expression) {
+        Node first = context.input().firstNode(node, expression);
+        return first == null ? null : XPathInput.textValue(first);
+    }
+
+    /**
+     * @param variableSlot where the value of the entity variable is kept, or -1
+     */
+
+    public GeneratedValue getInstance(GeneratorElement generator, int variableSlot, String unique) {
         if (generator == null) {
             throw exception("Value generator missing");
         }
         GeneratedValue generatedValue;
-        if (variable != null) {
-            generatedValue = get(variable);
+        boolean reused = true;
+        if (variableSlot >= 0) {
+            generatedValue = get(variableSlot);
             if (generatedValue == null) {
-                generatedValue = context.policy().generate(generator.name, new Generator.ArgValues() {
-                    @Override
-                    public ArgValue getArgValue(String name, SourceType sourceType) {
-                        return context.input().evaluateArgument(node, index, generator, name, sourceType);
-                    }
-                });
-                put(variable, generatedValue);
-//                System.out.println(generator.variable + " ===VAR==> " + generatedValue);
+                generatedValue = context.policy().generate(generator.name, context.argBuffer().bind(this, generator));
+                put(variableSlot, generatedValue);
+                reused = false;
             }
-//            else {
-//                System.out.println(generator.variable + " <==VAR=== " + generatedValue);
-//            }
         } else {
-            String nodeName = extractXPath(node) + unique;
-            generatedValue = context.getGeneratedValue(nodeName);
+            generatedValue = context.getGeneratedValue(node, unique);
             if (generatedValue == null) {
-                generatedValue = context.policy().generate(generator.name, new Generator.ArgValues() {
-                    @Override
-                    public ArgValue getArgValue(String name, SourceType sourceType) {
-                        return context.input().evaluateArgument(node, index, generator, name, sourceType);
-                    }
-                });
-                context.putGeneratedValue(nodeName, generatedValue);
-//                System.out.println(nodeName + " ===CTX==> " + generatedValue);
+                generatedValue = context.policy().generate(generator.name, context.argBuffer().bind(this, generator));
+                context.putGeneratedValue(node, unique, generatedValue);
+                reused = false;
             }
-//            else {
-//                System.out.println(nodeName + " <==CTX=== " + generatedValue);
-//            }
+        }
+        Trace trace = context.trace();
+        if (trace.isOn(Trace.Level.DEBUG, context.mappingNumber(), generator.name)) {
+            trace.event(Trace.Level.DEBUG, "generator", context.mappingNumber()).with("generator", generator.name)
+                    .with("slot", variableSlot).with("unique", unique).with("node", extractXPath(node))
+                    .with("value", generatedValue == null ? null : generatedValue.text).with("reused", reused).write();
         }
         if (generatedValue == null) {
             throw exception("Empty value produced");
@@ -105,6 +161,52 @@ public abstract class GeneratorContext {
         return generatedValue;
     }
 
+    /**
+     * The arguments of one generator call at a node. Each bound argument
+     * is evaluated at most once, when the generator first asks for it, since
+     * the generator decides the type of untyped arguments.
+     * <p/>
+     * Generator calls never overlap within one execution, so a single
+     * buffer is bound to each call in turn instead of making a new one.
+     */
+
+    public static class ArgBuffer implements Generator.ArgValues {
+        private GeneratorContext generatorContext;
+        private GeneratorElement generator;
+        private ArgValue[] values = new ArgValue[4];
+        private SourceType[] types = new SourceType[4];
+
+        public ArgBuffer bind(GeneratorContext generatorContext, GeneratorElement generator) {
+            this.generatorContext = generatorContext;
+            this.generator = generator;
+            int slots = generator.getSlotCount();
+            if (slots > values.length) {
+                values = new ArgValue[slots];
+                types = new SourceType[slots];
+            }
+            else {
+                Arrays.fill(values, 0, slots, null);
+                Arrays.fill(types, 0, slots, null);
+            }
+            return this;
+        }
+
+        @Override
+        public ArgValue getArgValue(String name, SourceType sourceType) {
+            GeneratorContext at = generatorContext;
+            ArgBinding binding = generator.getBinding(name);
+            if (binding == null) {
+                return at.context.input().evaluateArgument(at.node, at.getIndex(), generator, name, sourceType);
+            }
+            SourceType type = binding.getType(sourceType);
+            if (types[binding.slot] != type) {
+                values[binding.slot] = at.context.input().evaluateArgument(at.node, at.getIndex(), generator, name, sourceType);
+                types[binding.slot] = type;
+            }
+            return values[binding.slot];
+        }
+    }
+
     public boolean conditionFails(Condition condition, GeneratorContext context) {
         return condition != null && condition.failure(context);
     }
@@ -117,7 +219,9 @@ public abstract class GeneratorContext {
         if (node == null || node.getNodeType() == Node.DOCUMENT_NODE) {
             return "/";
         } else {
-            String soFar = extractXPath(node.getParentNode());
+            // attributes have no parent in a DOM, but they do in a tree
+            Node parent = node.getNodeType() == Node.ATTRIBUTE_NODE ? null : node.getParentNode();
+            String soFar = extractXPath(parent);
             int sibNumber = 0;
             Node sib = node;
             while (sib.getPreviousSibling() != null) {
@@ -0,0 +1,120 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The intermediate relation of a double join, such as a table linking actors
+ * to projects, is indexed here once so that each domain node can find its
+ * second keys with a single lookup.
+ * <p/>
+ * The index reproduces what the positional expressions used to find. For
+ * every position k up to the number of first keys, the nodes at position k
+ * among their like-named siblings give the k-th pair of first and second
+ * keys, with an empty key where there is nothing.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class IntermediateIndex {
+
+    private static final Pattern LAST_STEP = Pattern.compile(".*/[A-Za-z_][A-Za-z0-9_.\\-]*(:[A-Za-z_][A-Za-z0-9_.\\-]*)?");
+    private final Map<String, List<String>> secondKeys;
+
+    private IntermediateIndex(Map<String, List<String>> secondKeys) {
+        this.secondKeys = secondKeys;
+    }
+
+    /**
+     * Only an absolute path ending in a plain element name can be indexed,
+     * since then positions are counted among like-named siblings and the
+     * context node makes no difference.
+     */
+
+    public static boolean applies(String nodeExpression) {
+        return nodeExpression.startsWith("/") && LAST_STEP.matcher(nodeExpression).matches();
+    }
+
+    public static IntermediateIndex build(SourceInput input, String nodeExpression, String firstPath, String secondPath) {
+        Node root = input.rootNode();
+        int size = input.countNodes(root, nodeExpression + "//" + firstPath + "/text()");
+        Map<Integer, List<Node>> positions = new HashMap<Integer, List<Node>>();
+        for (Node node : input.nodeList(root, nodeExpression)) {
+            int position = position(node);
+            List<Node> nodes = positions.get(position);
+            if (nodes == null) {
+                positions.put(position, nodes = new ArrayList<Node>());
+            }
+            nodes.add(node);
+        }
+        Map<String, List<String>> secondKeys = new HashMap<String, List<String>>();
+        for (int count = 1; count <= size; count++) {
+            List<Node> nodes = positions.get(count);
+            String first = firstValue(input, nodes, firstPath);
+            List<String> seconds = secondKeys.get(first);
+            if (seconds == null) {
+                secondKeys.put(first, seconds = new ArrayList<String>());
+            }
+            seconds.add(firstValue(input, nodes, secondPath));
+        }
+        return new IntermediateIndex(secondKeys);
+    }
+
+    public List<String> getSecondKeys(String firstKey) {
+        List<String> seconds = secondKeys.get(firstKey);
+        return seconds == null ? Collections.<String>emptyList() : seconds;
+    }
+
+    private static int position(Node node) {
+        int position = 1;
+        for (Node sibling = node.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling()) {
+            if (sibling.getNodeType() == Node.ELEMENT_NODE && sameName(sibling, node)) {
+                position++;
+            }
+        }
+        return position;
+    }
+
+    private static boolean sameName(Node a, Node b) {
+        String uriA = a.getNamespaceURI(), uriB = b.getNamespaceURI();
+        return localName(a).equals(localName(b)) && (uriA == null ? uriB == null : uriA.equals(uriB));
+    }
+
+    private static String localName(Node node) {
+        return node.getLocalName() == null ? node.getNodeName() : node.getLocalName();
+    }
+
+    // the value of the first text node below any of the nodes, like valueAt
+    private static String firstValue(SourceInput input, List<Node> nodes, String path) {
+        if (nodes != null) {
+            for (Node node : nodes) {
+                List<Node> texts = input.nodeList(node, ".//" + path + "/text()");
+                if (!texts.isEmpty()) {
+                    String value = XPathInput.textValue(texts.get(0));
+                    return value == null ? "" : value.trim();
+                }
+            }
+        }
+        return "";
+    }
+}
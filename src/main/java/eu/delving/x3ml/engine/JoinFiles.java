@@ -0,0 +1,269 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static eu.delving.x3ml.X3MLEngine.exception;
+
+/**
+ * Range records for == joins can come from local files instead of from the
+ * source record, which is how authority files like persons and places are
+ * joined against object records.
+ * <p/>
+ * A file is either tied to one range expression, or added as a named input
+ * which range expressions address as a variable, as in $persons//PERSON.
+ * <p/>
+ * A file below the memory threshold is parsed and indexed in memory once
+ * for each source backend, so that its nodes are of the same kind as those
+ * of the source records. When the inputs of a backend are not thread safe,
+ * as with DOM, every thread executing the engine gets its own copy. A
+ * larger file gets a DiskJoinIndex, so only the records actually joined
+ * are ever parsed. Either way the index is built on first use and kept for
+ * the life of the engine.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class JoinFiles {
+
+    public static final long DEFAULT_MEMORY_THRESHOLD = 16L * 1024 * 1024;
+    private final XPathCache xpathCache;
+    private final NamespaceContext namespaceContext;
+    private final Map<String, File> files = new HashMap<String, File>();
+    private final Map<String, File> inputs = new HashMap<String, File>();
+    private final Map<SourceInput.Factory, Parsed> parsed = new HashMap<SourceInput.Factory, Parsed>();
+    private final Map<Thread, Map<SourceInput.Factory, Parsed>> parsedByThread = new WeakHashMap<Thread, Map<SourceInput.Factory, Parsed>>();
+    private final Map<JoinIndex.Key, DiskJoinIndex> diskIndexes = new HashMap<JoinIndex.Key, DiskJoinIndex>();
+    private long memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+    private File directory;
+
+    public JoinFiles(XPathCache xpathCache, NamespaceContext namespaceContext) {
+        this.xpathCache = xpathCache;
+        this.namespaceContext = namespaceContext;
+    }
+
+    /**
+     * Take the range records for joins with the given range expression from
+     * a file rather than from the source.
+     */
+
+    public synchronized void add(String rangeExpression, File file) {
+        if (!file.isFile()) {
+            throw exception("Join file not found: " + file);
+        }
+        files.put(rangeExpression, file);
+    }
+
+    /**
+     * Bind a file to a name, so that range expressions starting with $name
+     * select their records from it.
+     */
+
+    public synchronized void addInput(String name, File file) {
+        if (!file.isFile()) {
+            throw exception("Auxiliary input not found: " + file);
+        }
+        inputs.put(name, file);
+    }
+
+    public synchronized List<String> getInputNames() {
+        return new ArrayList<String>(inputs.keySet());
+    }
+
+    /**
+     * @param memoryThreshold files larger than this many bytes are indexed on disk
+     */
+
+    public synchronized void setMemoryThreshold(long memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * @param directory where disk indexes are written, by default the temporary directory
+     */
+
+    public synchronized void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public synchronized boolean contains(String rangeExpression) {
+        return files.containsKey(rangeExpression) || inputName(rangeExpression) != null;
+    }
+
+    public synchronized boolean isOnDisk(String rangeExpression, String keyPath) {
+        return diskIndexes.containsKey(new JoinIndex.Key(rangeExpression, keyPath));
+    }
+
+    public synchronized void close() {
+        for (DiskJoinIndex index : diskIndexes.values()) {
+            index.close();
+        }
+        diskIndexes.clear();
+        parsed.clear();
+        parsedByThread.clear();
+    }
+
+    /**
+     * @param factory the backend of the source input, which also builds the nodes taken from files
+     * @param input the source input of the execution, which evaluates keys on disk records
+     */
+
+    public Session session(SourceInput.Factory factory, SourceInput input) {
+        return new Session(factory, input);
+    }
+
+    private synchronized Object index(String rangeExpression, String keyPath, SourceInput.Factory factory) {
+        File file = files.get(rangeExpression);
+        String recordExpression = rangeExpression;
+        if (file == null) {
+            String name = inputName(rangeExpression);
+            if (name == null) {
+                return null;
+            }
+            file = inputs.get(name);
+            if (file == null) {
+                throw exception("Auxiliary input not bound: $" + name);
+            }
+            recordExpression = rangeExpression.substring(name.length() + 1);
+        }
+        JoinIndex.Key key = new JoinIndex.Key(rangeExpression, keyPath);
+        DiskJoinIndex diskIndex = diskIndexes.get(key);
+        if (diskIndex != null) {
+            return diskIndex;
+        }
+        Parsed backend = parsed.get(factory);
+        if (backend == null) {
+            backend = parsedByThread().get(factory);
+        }
+        JoinIndex index = backend == null ? null : backend.indexes.get(key);
+        if (index == null) {
+            if (file.length() > memoryThreshold) {
+                diskIndex = DiskJoinIndex.build(file, recordExpression, keyPath, xpathCache, namespaceContext, directory);
+                diskIndexes.put(key, diskIndex);
+                return diskIndex;
+            }
+            SourceInput input = backend == null ? null : backend.inputs.get(file);
+            if (input == null) {
+                input = factory.create(parse(file), xpathCache, namespaceContext, null);
+                if (backend == null) {
+                    backend = new Parsed();
+                    (input.isThreadSafe() ? parsed : parsedByThread()).put(factory, backend);
+                }
+                backend.inputs.put(file, input);
+            }
+            index = JoinIndex.build(input, new JoinIndex.Key(recordExpression, keyPath));
+            backend.indexes.put(key, index);
+        }
+        return index;
+    }
+
+    private Map<SourceInput.Factory, Parsed> parsedByThread() {
+        Map<SourceInput.Factory, Parsed> map = parsedByThread.get(Thread.currentThread());
+        if (map == null) {
+            parsedByThread.put(Thread.currentThread(), map = new HashMap<SourceInput.Factory, Parsed>());
+        }
+        return map;
+    }
+
+    /**
+     * @return the name in a range expression like $name//RECORD, or null
+     */
+
+    private static String inputName(String rangeExpression) {
+        if (!rangeExpression.startsWith("$")) {
+            return null;
+        }
+        int slash = rangeExpression.indexOf('/');
+        if (slash < 2) {
+            throw exception("Range on an auxiliary input needs a path: " + rangeExpression);
+        }
+        return rangeExpression.substring(1, slash);
+    }
+
+    private static Element parse(File file) {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder().parse(file).getDocumentElement();
+        }
+        catch (Exception e) {
+            throw exception("Unable to parse join file " + file, e);
+        }
+    }
+
+    /**
+     * The files parsed and indexed in memory for one source backend.
+     */
+
+    private static class Parsed {
+        final Map<File, SourceInput> inputs = new HashMap<File, SourceInput>();
+        final Map<JoinIndex.Key, JoinIndex> indexes = new HashMap<JoinIndex.Key, JoinIndex>();
+    }
+
+    /**
+     * Lookups during one execution, which remember the disk records already
+     * resolved so that a record is always the same node.
+     */
+
+    public class Session {
+        private final SourceInput.Factory factory;
+        private final SourceInput input;
+        private final Map<DiskJoinIndex, Map<Long, Node>> resolved = new HashMap<DiskJoinIndex, Map<Long, Node>>();
+
+        private Session(SourceInput.Factory factory, SourceInput input) {
+            this.factory = factory;
+            this.input = input;
+        }
+
+        /**
+         * @return true if the records of this range expression are taken from a file
+         */
+
+        public boolean contains(String rangeExpression) {
+            return JoinFiles.this.contains(rangeExpression);
+        }
+
+        /**
+         * @return the range nodes, or null if the range is not taken from a file
+         */
+
+        public List<Node> rangeNodes(String rangeExpression, String keyPath, String keyValue) {
+            Object index = index(rangeExpression, keyPath, factory);
+            if (index == null) {
+                return null;
+            }
+            if (index instanceof JoinIndex) {
+                return new ArrayList<Node>(((JoinIndex) index).lookup(keyValue));
+            }
+            DiskJoinIndex diskIndex = (DiskJoinIndex) index;
+            Map<Long, Node> records = resolved.get(diskIndex);
+            if (records == null) {
+                resolved.put(diskIndex, records = new HashMap<Long, Node>());
+            }
+            return diskIndex.lookup(keyValue, records, factory, input);
+        }
+    }
+}
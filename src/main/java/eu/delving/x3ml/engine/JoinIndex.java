@@ -0,0 +1,262 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import static eu.delving.x3ml.X3MLEngine.exception;
+
+/**
+ * The range side of an == join, indexed by the value found at one or more key
+ * paths within each range node.
+ * <p/>
+ * The range nodes are held in a single array, grouped by key value and in
+ * document order within each group, and every key value maps to its slice of
+ * the array. Key values are evaluated in parallel for large range sets when
+ * the input allows it.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class JoinIndex {
+
+    public static final int PARALLEL_THRESHOLD = 10000;
+    private static final int CHUNK_SIZE = 2000;
+    private static ExecutorService executor;
+    private final Key key;
+    private final Node[] nodes;
+    private final Map<Object, int[]> slices;
+    private final long buildNanos;
+    private final boolean parallel;
+
+    private JoinIndex(Key key, Node[] nodes, Map<Object, int[]> slices, long buildNanos, boolean parallel) {
+        this.key = key;
+        this.nodes = nodes;
+        this.slices = slices;
+        this.buildNanos = buildNanos;
+        this.parallel = parallel;
+    }
+
+    public static JoinIndex build(final SourceInput input, Key key) {
+        long start = System.nanoTime();
+        List<Node> rangeNodes = input.nodeList(input.rootNode(), key.rangeExpression);
+        final Node[] range = rangeNodes.toArray(new Node[rangeNodes.size()]);
+        final Object[] values = new Object[range.length];
+        final String[] keyPaths = key.keyPaths;
+        boolean parallel = input.isThreadSafe() && range.length >= PARALLEL_THRESHOLD;
+        if (parallel) {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int chunk = 0; chunk < range.length; chunk += CHUNK_SIZE) {
+                final int from = chunk, to = Math.min(range.length, chunk + CHUNK_SIZE);
+                futures.add(executor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int walk = from; walk < to; walk++) {
+                            values[walk] = keyValue(input, range[walk], keyPaths);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw exception("Interrupted building join index on " + key, e);
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw exception("Unable to build join index on " + key, e.getCause());
+                }
+            }
+        }
+        else {
+            for (int walk = 0; walk < range.length; walk++) {
+                values[walk] = keyValue(input, range[walk], keyPaths);
+            }
+        }
+        Map<Object, int[]> slices = new HashMap<Object, int[]>();
+        for (Object value : values) {
+            int[] slice = slices.get(value);
+            if (slice == null) {
+                slices.put(value, slice = new int[2]);
+            }
+            slice[1]++;
+        }
+        int offset = 0;
+        for (int[] slice : slices.values()) {
+            slice[0] = offset;
+            offset += slice[1];
+            slice[1] = 0;
+        }
+        Node[] nodes = new Node[range.length];
+        for (int walk = 0; walk < range.length; walk++) {
+            int[] slice = slices.get(values[walk]);
+            nodes[slice[0] + slice[1]++] = range[walk];
+        }
+        return new JoinIndex(key, nodes, slices, System.nanoTime() - start, parallel);
+    }
+
+    public List<Node> lookup(String... keyValues) {
+        if (keyValues.length != key.keyPaths.length) {
+            throw exception("Join on " + key + " needs " + key.keyPaths.length + " values");
+        }
+        int[] slice = slices.get(keyValues.length == 1 ? keyValues[0] : Arrays.asList(keyValues));
+        if (slice == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(nodes).subList(slice[0], slice[0] + slice[1]));
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    public int getRangeCount() {
+        return nodes.length;
+    }
+
+    public int getCardinality() {
+        return slices.size();
+    }
+
+    public int getLargestSlice() {
+        int largest = 0;
+        for (int[] slice : slices.values()) {
+            largest = Math.max(largest, slice[1]);
+        }
+        return largest;
+    }
+
+    public long getBuildNanos() {
+        return buildNanos;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * A rough count of the bytes held by the index itself, not counting the
+     * source nodes. It assumes compressed references.
+     */
+
+    public long getEstimatedBytes() {
+        long bytes = 16 + 4L * nodes.length; // node array
+        int capacity = 16;
+        while (capacity * 3 / 4 < slices.size()) capacity *= 2;
+        bytes += 48 + 4L * capacity; // map and table
+        for (Object value : slices.keySet()) {
+            bytes += 32 + 24; // map entry and slice
+            if (value instanceof String) {
+                bytes += stringBytes((String) value);
+            }
+            else {
+                bytes += 16 + 4L * key.keyPaths.length;
+                for (Object part : (List<?>) value) {
+                    bytes += stringBytes((String) part);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    public String toString() {
+        return String.format(
+                "JoinIndex(%s, range=%d, keys=%d, largest=%d, build=%.1fms%s, ~%dKB)",
+                key, getRangeCount(), getCardinality(), getLargestSlice(), buildNanos / 1e6,
+                parallel ? " parallel" : "", getEstimatedBytes() / 1024
+        );
+    }
+
+    private static Object keyValue(SourceInput input, Node node, String[] keyPaths) {
+        if (keyPaths.length == 1) {
+            return input.valueAt(node, keyPaths[0]);
+        }
+        String[] values = new String[keyPaths.length];
+        for (int walk = 0; walk < keyPaths.length; walk++) {
+            values[walk] = input.valueAt(node, keyPaths[walk]);
+        }
+        return Arrays.asList(values);
+    }
+
+    private static long stringBytes(String string) {
+        return 24 + ((16 + 2L * string.length() + 7) & ~7);
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "x3ml-join-index");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    public static class Key {
+        public final String rangeExpression;
+        public final String[] keyPaths;
+
+        public Key(String rangeExpression, String... keyPaths) {
+            if (keyPaths.length == 0) {
+                throw exception("Join on " + rangeExpression + " needs a key path");
+            }
+            this.rangeExpression = rangeExpression;
+            this.keyPaths = keyPaths;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return rangeExpression.equals(other.rangeExpression) && Arrays.equals(keyPaths, other.keyPaths);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * rangeExpression.hashCode() + Arrays.hashCode(keyPaths);
+        }
+
+        public String toString() {
+            StringBuilder out = new StringBuilder(rangeExpression).append(" by ");
+            for (int walk = 0; walk < keyPaths.length; walk++) {
+                if (walk > 0) out.append(", ");
+                out.append(keyPaths[walk]);
+            }
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Join indexes only live as long as one execution, so the engine gathers
+ * their figures here to show what each join costs over many records.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class JoinReport {
+
+    private final Map<JoinIndex.Key, Entry> entries = new LinkedHashMap<JoinIndex.Key, Entry>();
+
+    public synchronized void record(Collection<JoinIndex> joinIndexes) {
+        for (JoinIndex joinIndex : joinIndexes) {
+            Entry entry = entries.get(joinIndex.getKey());
+            if (entry == null) {
+                entries.put(joinIndex.getKey(), entry = new Entry(joinIndex.getKey()));
+            }
+            entry.builds++;
+            entry.buildNanos += joinIndex.getBuildNanos();
+            entry.rangeNodes += joinIndex.getRangeCount();
+            entry.keys += joinIndex.getCardinality();
+            entry.largestSlice = Math.max(entry.largestSlice, joinIndex.getLargestSlice());
+            entry.maximumBytes = Math.max(entry.maximumBytes, joinIndex.getEstimatedBytes());
+        }
+    }
+
+    public synchronized List<Entry> getEntries() {
+        List<Entry> copy = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            copy.add(entry.copy());
+        }
+        return copy;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public String toString() {
+        StringBuilder out = new StringBuilder("JoinReport");
+        for (Entry entry : getEntries()) {
+            out.append("\n  ").append(entry);
+        }
+        return out.toString();
+    }
+
+    public static class Entry {
+        public final JoinIndex.Key key;
+        public int builds;
+        public long buildNanos;
+        public long rangeNodes;
+        public long keys;
+        public int largestSlice;
+        public long maximumBytes;
+
+        private Entry(JoinIndex.Key key) {
+            this.key = key;
+        }
+
+        private Entry copy() {
+            Entry entry = new Entry(key);
+            entry.builds = builds;
+            entry.buildNanos = buildNanos;
+            entry.rangeNodes = rangeNodes;
+            entry.keys = keys;
+            entry.largestSlice = largestSlice;
+            entry.maximumBytes = maximumBytes;
+            return entry;
+        }
+
+        public String toString() {
+            return String.format(
+                    "%s: builds=%d, build=%.2fms/record, range=%d/record, keys=%d/record, largest=%d, memory<=%dKB",
+                    key, builds, buildNanos / 1e6 / builds, rangeNodes / builds, keys / builds, largestSlice, maximumBytes / 1024
+            );
+        }
+    }
+}
@@ -0,0 +1,162 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import org.w3c.dom.Node;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An == join between a domain and a range that both arrive in ascending
+ * order of their keys. Instead of indexing the whole range, a cursor moves
+ * through the range nodes in step with the domain keys, so apart from the
+ * node list only the current key group is held.
+ * <p/>
+ * The range is checked for order before the first lookup. If it is out of
+ * order, or the domain keys ever go backwards, the join falls back to the
+ * hash index of the source input.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class MergeJoin {
+
+    private final SourceInput input;
+    private final String rangeExpression;
+    private final String rangeKeyPath;
+    private List<Node> range;
+    private int cursor;
+    private String cursorKey;
+    private String groupKey;
+    private List<Node> group = Collections.emptyList();
+    private String fallback;
+    private int lookups;
+
+    public MergeJoin(SourceInput input, String rangeExpression, String rangeKeyPath) {
+        this.input = input;
+        this.rangeExpression = rangeExpression;
+        this.rangeKeyPath = rangeKeyPath;
+    }
+
+    public List<Node> lookup(String keyValue) {
+        lookups++;
+        if (fallback == null) {
+            if (range == null) {
+                start();
+            }
+            else if (compare(keyValue, groupKey) < 0) {
+                fallback = "domain key " + keyValue + " after " + groupKey;
+            }
+        }
+        if (fallback != null) {
+            return input.rootNodeList(rangeExpression, rangeKeyPath, keyValue);
+        }
+        if (keyValue.equals(groupKey)) {
+            return group;
+        }
+        while (cursorKey != null && compare(cursorKey, keyValue) < 0) {
+            advance();
+        }
+        int start = cursor;
+        while (cursorKey != null && cursorKey.equals(keyValue)) {
+            advance();
+        }
+        groupKey = keyValue;
+        group = range.subList(start, cursor);
+        return group;
+    }
+
+    public boolean isFallenBack() {
+        return fallback != null;
+    }
+
+    public int getLookups() {
+        return lookups;
+    }
+
+    /**
+     * Keys that are all digits are in numeric order, and they come before
+     * every other key, which are in string order.
+     */
+
+    public static int compare(String a, String b) {
+        boolean numberA = isNumber(a), numberB = isNumber(b);
+        if (numberA != numberB) {
+            return numberA ? -1 : 1;
+        }
+        if (numberA) {
+            int startA = skipZeros(a), startB = skipZeros(b);
+            int lengths = (a.length() - startA) - (b.length() - startB);
+            if (lengths != 0) {
+                return lengths;
+            }
+            int digits = a.substring(startA).compareTo(b.substring(startB));
+            if (digits != 0) {
+                return digits;
+            }
+        }
+        return a.compareTo(b);
+    }
+
+    public String toString() {
+        return String.format(
+                "MergeJoin(%s on %s, lookups=%d%s)",
+                rangeExpression, rangeKeyPath, lookups, fallback == null ? "" : ", fell back: " + fallback
+        );
+    }
+
+    private void start() {
+        range = input.nodeList(input.rootNode(), rangeExpression);
+        String previous = null;
+        for (Node node : range) {
+            String key = input.valueAt(node, rangeKeyPath);
+            if (previous != null && compare(key, previous) < 0) {
+                fallback = "range key " + key + " after " + previous;
+                range = null;
+                return;
+            }
+            previous = key;
+        }
+        cursor = -1;
+        advance();
+    }
+
+    private void advance() {
+        cursor++;
+        cursorKey = cursor < range.size() ? input.valueAt(range.get(cursor), rangeKeyPath) : null;
+    }
+
+    private static boolean isNumber(String key) {
+        if (key.length() == 0) {
+            return false;
+        }
+        for (int walk = 0; walk < key.length(); walk++) {
+            char ch = key.charAt(walk);
+            if (ch < '0' || ch > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipZeros(String number) {
+        int start = 0;
+        while (start < number.length() - 1 && number.charAt(start) == '0') {
+            start++;
+        }
+        return start;
+    }
+}
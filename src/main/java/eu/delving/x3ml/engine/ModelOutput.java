@@ -23,6 +23,8 @@ import com.hp.hpl.jena.rdf.model.Resource;
 import javax.xml.namespace.NamespaceContext;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import static eu.delving.x3ml.X3MLEngine.Output;
 import static eu.delving.x3ml.X3MLEngine.exception;
@@ -37,6 +39,16 @@ public class ModelOutput implements Output {
 
     private final Model model;
     private final NamespaceContext namespaceContext;
+    private final Map<X3ML.Relationship, Property> properties = new IdentityHashMap<X3ML.Relationship, Property>();
+    private final Map<TypeElement, Resource> types = new IdentityHashMap<TypeElement, Resource>();
+    private final Map<X3ML.GeneratorElement, Literal> foldedLiterals = new IdentityHashMap<X3ML.GeneratorElement, Literal>();
+    private Property labelProperty;
+    private long folded;
+    private long deferredCalls;
+    private long madeCalls;
+    private long avoidedCalls;
+    private long emitted;
+    private long suppressed;
 
     public ModelOutput(Model model, NamespaceContext namespaceContext) {
         this.model = model;
@@ -51,8 +63,60 @@ public class ModelOutput implements Output {
         if (typeElement == null) {
             throw exception("Missing qualified name");
         }
-        String typeUri = namespaceContext.getNamespaceURI(typeElement.getPrefix());
-        return model.createResource(uriString, model.createResource(typeUri + typeElement.getLocalName()));
+        Resource type = types.get(typeElement);
+        if (type == null) {
+            types.put(typeElement, type = model.createResource(typeElement.getUri(namespaceContext)));
+        }
+        emitted++;
+        return model.createResource(uriString, type);
+    }
+
+    public Property getLabelProperty() {
+        if (labelProperty == null) {
+            labelProperty = createProperty(new TypeElement("rdfs:label", "http://www.w3.org/2000/01/rdf-schema#"));
+        }
+        return labelProperty;
+    }
+
+    /**
+     * @return the literal already made by this constant generator, or null
+     */
+
+    public Literal getFoldedLiteral(X3ML.GeneratorElement generator) {
+        Literal literal = foldedLiterals.get(generator);
+        if (literal != null) {
+            folded++;
+        }
+        return literal;
+    }
+
+    public void putFoldedLiteral(X3ML.GeneratorElement generator, Literal literal) {
+        foldedLiterals.put(generator, literal);
+    }
+
+    public long getFolded() {
+        return folded;
+    }
+
+    public void deferGeneratorCalls(int count) {
+        deferredCalls += count;
+    }
+
+    public void makeGeneratorCalls(int count) {
+        madeCalls += count;
+    }
+
+    public void avoidGeneratorCalls(int count) {
+        avoidedCalls += count;
+    }
+
+    /**
+     * @return the generator calls put off until linking which never had to
+     * be made, and those saved by not resolving an entity over again
+     */
+
+    public long getAvoidedGeneratorCalls() {
+        return avoidedCalls + deferredCalls - madeCalls;
     }
 
     public Property createProperty(TypeElement typeElement) {
@@ -67,8 +131,43 @@ public class ModelOutput implements Output {
         if (relationship == null) {
             throw exception("Missing qualified name");
         }
-        String propertyNamespace = namespaceContext.getNamespaceURI(relationship.getPrefix());
-        return model.createProperty(propertyNamespace, relationship.getLocalName());
+        Property property = properties.get(relationship);
+        if (property == null) {
+            properties.put(relationship, property = model.createProperty(relationship.getUri(namespaceContext)));
+        }
+        return property;
+    }
+
+    public void addStatement(Resource subject, Property property, Resource object) {
+        subject.addProperty(property, object);
+        emitted++;
+    }
+
+    public void addStatement(Resource subject, Property property, Literal object) {
+        subject.addLiteral(property, object);
+        emitted++;
+    }
+
+    /**
+     * Statements already added once, which a repeated link would only have
+     * added again.
+     */
+
+    public void suppress(long count) {
+        suppressed += count;
+    }
+
+    /**
+     * @return the statements handed to the model, types included, counting
+     * those the model already had
+     */
+
+    public long getEmitted() {
+        return emitted;
+    }
+
+    public long getSuppressed() {
+        return suppressed;
     }
 
     public Literal createLiteral(String value, String language) {
@@ -76,9 +175,7 @@ public class ModelOutput implements Output {
     }
 
     public Literal createTypedLiteral(String value, TypeElement typeElement) {
-        String literalNamespace = namespaceContext.getNamespaceURI(typeElement.getPrefix());
-        String typeUri = literalNamespace + typeElement.getLocalName();
-        return model.createTypedLiteral(value, typeUri);
+        return model.createTypedLiteral(value, typeElement.getUri(namespaceContext));
     }
 
     public void writeXML(PrintStream out) {
@@ -44,6 +44,8 @@ public class Path extends GeneratorContext {
     public List<IntermediateNode> intermediateNodes;
     public List<Resource> lastResources;
     public Property lastProperty;
+    private boolean linked;
+    private long linkedStatements;
 
     public Path(Root.Context context, Domain domain, PathElement path, Node node, int index) {
         super(context, domain, node, index);
@@ -56,15 +58,9 @@ public class Path extends GeneratorContext {
         if (conditionFails(relation.condition, this)) {
             return false;
         }
-        if (relation.properties == null || relation.properties.isEmpty()) {
-            throw exception("Target relation must have at least one property");
-        }
-        if (relation.entities != null) {
-            if (relation.entities.size() + 1 != relation.properties.size()) {
-                throw exception("Target relation must have one more property than entity");
-            }
-        } else if (relation.properties.size() != 1) {
-            throw exception("Target relation must just one property if it has no entities");
+        String arityProblem = relation.getArityProblem();
+        if (arityProblem != null) {
+            throw exception(arityProblem);
         }
         relationship = relation.properties.get(0);
         property = context.output().createProperty(relationship);
@@ -72,11 +68,22 @@ public class Path extends GeneratorContext {
         return true;
     }
 
+    /**
+     * Every range of this path links it again, but the intermediate nodes
+     * and the statements between them are only added the first time.
+     */
+
     public void link() {
         domain.link();
         if (!domain.entityResolver.hasResources()) {
             throw exception("Domain node has no resource");
         }
+        if (linked) {
+            context.output().suppress(linkedStatements);
+            return;
+        }
+        linked = true;
+        long before = context.output().getEmitted();
         lastResources = domain.entityResolver.resources;
         lastProperty = property;
         for (IntermediateNode intermediateNode : intermediateNodes) {
@@ -86,12 +93,13 @@ public class Path extends GeneratorContext {
             }
             for (Resource lastResource : lastResources) {
                 for (Resource resolvedResource : intermediateNode.entityResolver.resources) {
-                    lastResource.addProperty(lastProperty, resolvedResource);
+                    context.output().addStatement(lastResource, lastProperty, resolvedResource);
                 }
             }
             lastResources = intermediateNode.entityResolver.resources;
             lastProperty = intermediateNode.property;
         }
+        linkedStatements = context.output().getEmitted() - before;
     }
 
     public List<Range> createRangeContexts(RangeElement range) {
@@ -102,8 +110,18 @@ public class Path extends GeneratorContext {
         if (range.source_node.expression.equals(expression)) {
             expression = "";
         }
-        List<Node> rangeNodes = context.input().nodeList(node, expression);
         List<Range> ranges = new ArrayList<Range>();
+        if (range.filteredSource != null) {
+            ConditionPushdown.Positions positions = new ConditionPushdown.Positions(context.input(), node, expression);
+            for (Node rangeNode : context.input().nodeList(node, range.filteredSource)) {
+                Range rangeContext = new Range(context, this, range, rangeNode, positions);
+                if (rangeContext.resolve()) {
+                    ranges.add(rangeContext);
+                }
+            }
+            return ranges;
+        }
+        List<Node> rangeNodes = context.input().nodeList(node, expression);
         int index = 1;
         for (Node rangeNode : rangeNodes) {
             Range rangeContext = new Range(context, this, range, rangeNode, index++);
@@ -0,0 +1,472 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import com.thoughtworks.xstream.annotations.XStreamOmitField;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static eu.delving.x3ml.X3MLEngine.exception;
+
+/**
+ * A parsed mapping or generator policy kept in a compact binary file next
+ * to its source, so that the next load reads the model straight from it
+ * and skips the XML altogether.
+ * <p/>
+ * The plan is keyed by a hash of the source, and by a hash of the layout
+ * of the model classes so that a plan from an older engine is not misread.
+ * When either differs, or the checksum shows the plan was damaged, the
+ * source is parsed and the plan written again. Failing to write it only
+ * costs the next load its head start. A plan that passes these checks and
+ * still cannot be decoded is a bug, and fails the load.
+ * <p/>
+ * Plans are small, so they are read into memory whole rather than mapped,
+ * which would keep the file locked on some platforms until the mapping is
+ * collected.
+ * <p/>
+ * Only what XStream would read is kept, which is every field not marked
+ * for omission. What binding computes from that depends on the namespace
+ * context and is cheap, so it is done again after every load.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class PlanCache {
+
+    private static final int MAGIC = 0x58334d50; // X3MP
+    private static final int HEADER_SIZE = 4 + 8 + 20 + 4 + 8; // magic, layout, source hash, length, checksum
+    private static final Map<Class<?>, Layout> LAYOUTS = new HashMap<Class<?>, Layout>();
+
+    public interface Parser<T> {
+
+        T parse(InputStream inputStream);
+    }
+
+    public static File planFile(File source) {
+        return new File(source.getPath() + ".plan");
+    }
+
+    public static <T> T load(File source, Class<T> rootClass, Parser<T> parser) {
+        byte[] bytes = readFile(source);
+        byte[] hash = sha1(bytes);
+        long layoutHash = layoutHash(rootClass);
+        File planFile = planFile(source);
+        if (planFile.isFile()) {
+            T plan = readPlan(planFile, rootClass, layoutHash, hash);
+            if (plan != null) {
+                return plan;
+            }
+        }
+        T parsed = parser.parse(new ByteArrayInputStream(bytes));
+        writePlan(planFile, parsed, rootClass, layoutHash, hash);
+        return parsed;
+    }
+
+    private static <T> T readPlan(File planFile, Class<T> rootClass, long layoutHash, byte[] hash) {
+        byte[] bytes;
+        try {
+            bytes = readBytes(planFile);
+        }
+        catch (IOException e) {
+            return null;
+        }
+        if (bytes.length < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC || buffer.getLong() != layoutHash) {
+            return null;
+        }
+        byte[] planHash = new byte[hash.length];
+        buffer.get(planHash);
+        if (!Arrays.equals(hash, planHash)) {
+            return null;
+        }
+        int length = buffer.getInt();
+        long checksum = buffer.getLong();
+        if (length != buffer.remaining() || checksum != crc32(bytes, HEADER_SIZE, length)) {
+            return null; // a damaged plan is simply rebuilt
+        }
+        try {
+            T plan = rootClass.cast(new Decoder(buffer).object(rootClass));
+            if (buffer.hasRemaining()) {
+                throw exception("Plan not read to the end: " + planFile);
+            }
+            return plan;
+        }
+        catch (IOException e) {
+            throw exception("Unable to decode plan " + planFile, e);
+        }
+        catch (BufferUnderflowException e) {
+            throw exception("Plan ended early: " + planFile, e);
+        }
+    }
+
+    private static void writePlan(File planFile, Object root, Class<?> rootClass, long layoutHash, byte[] hash) {
+        File temporary = new File(planFile.getPath() + ".tmp");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            new Encoder(out).object(root, rootClass);
+            out.close();
+            byte[] body = bytes.toByteArray();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putLong(layoutHash);
+            header.put(hash);
+            header.putInt(body.length);
+            header.putLong(crc32(body, 0, body.length));
+            FileOutputStream fileOut = new FileOutputStream(temporary);
+            try {
+                fileOut.write(header.array());
+                fileOut.write(body);
+            }
+            finally {
+                fileOut.close();
+            }
+            if (!temporary.renameTo(planFile)) {
+                planFile.delete();
+                temporary.renameTo(planFile);
+            }
+        }
+        catch (IOException e) {
+            temporary.delete();
+        }
+    }
+
+    private static class Encoder {
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        private Encoder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void object(Object value, Class<?> type) throws IOException {
+            if (value == null) {
+                out.writeByte(0);
+                return;
+            }
+            out.writeByte(1);
+            for (Field field : layout(type).fields) {
+                Object fieldValue = get(field, value);
+                Class<?> fieldType = field.getType();
+                if (fieldType == String.class) {
+                    string((String) fieldValue);
+                }
+                else if (fieldType.isEnum()) {
+                    string(fieldValue == null ? null : ((Enum<?>) fieldValue).name());
+                }
+                else if (fieldType == List.class) {
+                    List<?> list = (List<?>) fieldValue;
+                    if (list == null) {
+                        number(0);
+                        continue;
+                    }
+                    number(list.size() + 1);
+                    Class<?> itemType = itemType(field);
+                    for (Object item : list) {
+                        object(item, itemType);
+                    }
+                }
+                else {
+                    object(fieldValue, fieldType);
+                }
+            }
+        }
+
+        void string(String value) throws IOException {
+            if (value == null) {
+                number(0);
+                return;
+            }
+            Integer id = strings.get(value);
+            if (id != null) {
+                number(id + 2);
+                return;
+            }
+            strings.put(value, strings.size());
+            number(1);
+            byte[] bytes = value.getBytes("UTF-8");
+            number(bytes.length);
+            out.write(bytes);
+        }
+
+        void number(int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+    }
+
+    private static class Decoder {
+        private final ByteBuffer buffer;
+        private final List<String> strings = new ArrayList<String>();
+
+        private Decoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @SuppressWarnings("unchecked")
+        Object object(Class<?> type) throws IOException {
+            if (buffer.get() == 0) {
+                return null;
+            }
+            Layout layout = layout(type);
+            Object value = create(layout.constructor);
+            for (Field field : layout.fields) {
+                Class<?> fieldType = field.getType();
+                if (fieldType == String.class) {
+                    set(field, value, string());
+                }
+                else if (fieldType.isEnum()) {
+                    String name = string();
+                    set(field, value, name == null ? null : Enum.valueOf((Class<Enum>) fieldType, name));
+                }
+                else if (fieldType == List.class) {
+                    int size = number() - 1;
+                    if (size < 0) {
+                        continue;
+                    }
+                    Class<?> itemType = itemType(field);
+                    List<Object> list = new ArrayList<Object>(size);
+                    for (int walk = 0; walk < size; walk++) {
+                        list.add(object(itemType));
+                    }
+                    set(field, value, list);
+                }
+                else {
+                    set(field, value, object(fieldType));
+                }
+            }
+            return value;
+        }
+
+        String string() throws IOException {
+            int id = number();
+            if (id == 0) {
+                return null;
+            }
+            if (id > 1) {
+                return strings.get(id - 2);
+            }
+            byte[] bytes = new byte[number()];
+            buffer.get(bytes);
+            String value = new String(bytes, "UTF-8");
+            strings.add(value);
+            return value;
+        }
+
+        int number() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    /**
+     * The fields a class keeps in a plan, in a fixed order.
+     */
+
+    private static class Layout {
+        final Constructor<?> constructor;
+        final Field[] fields;
+
+        private Layout(Class<?> type) {
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            }
+            catch (NoSuchMethodException e) {
+                throw exception("No constructor to plan " + type.getName());
+            }
+            List<Field> list = new ArrayList<Field>();
+            for (Class<?> walk = type; walk != Object.class; walk = walk.getSuperclass()) {
+                for (Field field : walk.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || field.isSynthetic() || field.isAnnotationPresent(XStreamOmitField.class)) {
+                        continue;
+                    }
+                    if (field.getType().isPrimitive()) {
+                        throw exception("Cannot plan field " + field);
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            fields = list.toArray(new Field[list.size()]);
+            Arrays.sort(fields, new Comparator<Field>() {
+                @Override
+                public int compare(Field a, Field b) {
+                    int order = a.getDeclaringClass().getName().compareTo(b.getDeclaringClass().getName());
+                    return order != 0 ? order : a.getName().compareTo(b.getName());
+                }
+            });
+        }
+    }
+
+    private static Layout layout(Class<?> type) {
+        synchronized (LAYOUTS) {
+            Layout layout = LAYOUTS.get(type);
+            if (layout == null) {
+                LAYOUTS.put(type, layout = new Layout(type));
+            }
+            return layout;
+        }
+    }
+
+    private static long layoutHash(Class<?> rootClass) {
+        Map<Class<?>, Layout> reached = new LinkedHashMap<Class<?>, Layout>();
+        reach(rootClass, reached);
+        StringBuilder signature = new StringBuilder();
+        for (Map.Entry<Class<?>, Layout> entry : reached.entrySet()) {
+            signature.append(entry.getKey().getName()).append('{');
+            for (Field field : entry.getValue().fields) {
+                signature.append(field.getName()).append(':').append(field.getGenericType()).append(';');
+            }
+            signature.append('}');
+        }
+        try {
+            return ByteBuffer.wrap(sha1(signature.toString().getBytes("UTF-8"))).getLong();
+        }
+        catch (IOException e) {
+            throw exception("No UTF-8", e);
+        }
+    }
+
+    private static void reach(Class<?> type, Map<Class<?>, Layout> reached) {
+        if (reached.containsKey(type)) {
+            return;
+        }
+        Layout layout = layout(type);
+        reached.put(type, layout);
+        for (Field field : layout.fields) {
+            Class<?> fieldType = field.getType();
+            if (fieldType == List.class) {
+                reach(itemType(field), reached);
+            }
+            else if (fieldType != String.class && !fieldType.isEnum()) {
+                reach(fieldType, reached);
+            }
+        }
+    }
+
+    private static Class<?> itemType(Field field) {
+        if (!(field.getGenericType() instanceof ParameterizedType)) {
+            throw exception("Cannot plan raw list " + field);
+        }
+        return (Class<?>) ((ParameterizedType) field.getGenericType()).getActualTypeArguments()[0];
+    }
+
+    private static Object get(Field field, Object object) {
+        try {
+            return field.get(object);
+        }
+        catch (IllegalAccessException e) {
+            throw exception("Cannot plan field " + field, e);
+        }
+    }
+
+    private static void set(Field field, Object object, Object value) {
+        try {
+            field.set(object, value);
+        }
+        catch (IllegalAccessException e) {
+            throw exception("Cannot plan field " + field, e);
+        }
+    }
+
+    private static Object create(Constructor<?> constructor) {
+        try {
+            return constructor.newInstance();
+        }
+        catch (Exception e) {
+            throw exception("Cannot create " + constructor.getDeclaringClass().getName(), e);
+        }
+    }
+
+    private static byte[] readFile(File file) {
+        try {
+            return readBytes(file);
+        }
+        catch (IOException e) {
+            throw exception("Unable to read " + file, e);
+        }
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int count = in.read(bytes, offset, bytes.length - offset);
+                if (count < 0) {
+                    throw new IOException("File changed while reading: " + file);
+                }
+                offset += count;
+            }
+            return bytes;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static long crc32(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+
+    private static byte[] sha1(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(bytes);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw exception("No SHA-1", e);
+        }
+    }
+}
@@ -31,14 +31,24 @@ public class Range extends GeneratorContext {
     public final RangeElement range;
     public EntityResolver rangeResolver;
 
+    private final boolean conditionPushedDown;
+
     public Range(Root.Context context, Path path, RangeElement range, Node node, int index) {
         super(context, path, node, index);
         this.path = path;
         this.range = range;
+        this.conditionPushedDown = false;
+    }
+
+    public Range(Root.Context context, Path path, RangeElement range, Node node, ConditionPushdown.Positions positions) {
+        super(context, path, node, positions);
+        this.path = path;
+        this.range = range;
+        this.conditionPushedDown = true;
     }
 
     public boolean resolve() {
-        if (conditionFails(range.target_node.condition, this)) {
+        if (!conditionPushedDown && conditionFails(range.target_node.condition, this)) {
             return false;
         }
         rangeResolver = new EntityResolver(context.output(), range.target_node.entityElement, this);
@@ -51,12 +61,12 @@ public class Range extends GeneratorContext {
             rangeResolver.link();
             for (Resource lastResource : path.lastResources) {
                 for (Resource resolvedResource : rangeResolver.resources) {
-                    lastResource.addProperty(path.lastProperty, resolvedResource);
+                    context.output().addStatement(lastResource, path.lastProperty, resolvedResource);
                 }
             }
         } else if (rangeResolver.hasLiteral()) {
             for (Resource lastResource : path.lastResources) {
-                lastResource.addLiteral(path.lastProperty, rangeResolver.literal);
+                context.output().addStatement(lastResource, path.lastProperty, rangeResolver.literal);
             }
         }
     }
@@ -17,16 +17,18 @@ package eu.delving.x3ml.engine;
 
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
-import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import javax.xml.namespace.NamespaceContext;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
 import static eu.delving.x3ml.engine.X3ML.GeneratedValue;
+import static eu.delving.x3ml.engine.X3ML.LinkElement;
 
 /**
  * The root of the mapping is where the domain contexts are created. They then
@@ -36,25 +38,45 @@ import static eu.delving.x3ml.engine.X3ML.GeneratedValue;
  */
 public class Root {
 
-    private final Element rootNode;
     private final ModelOutput modelOutput;
-    private final XPathInput xpathInput;
+    private final SourceInput sourceInput;
     private final Context context;
-    private final Map<String, GeneratedValue> generated = new HashMap<String, GeneratedValue>();
+    private final Map<String, Map<Node, GeneratedValue>> generated = new HashMap<String, Map<Node, GeneratedValue>>();
+    private final Map<String, Node> attributeKeys = new HashMap<String, Node>();
+    private final Map<LinkElement, MergeJoin> mergeJoins = new IdentityHashMap<LinkElement, MergeJoin>();
+    private final ExpressionMemo expressionMemo;
+    private final ConstantFolds constantFolds;
+    private final ValueScopes valueScopes;
+    private final Trace trace;
+    private long foldedBefore;
+    private final ExpressionMemo.Input memoInput;
+    private SourceInput input;
+    private int mappingNumber = -1;
+    private X3ML.Mapping mapping;
+    private Scope mappingScope;
+    private final List<Scope> domainScopes = new ArrayList<Scope>();
+    private long evicted, evictedBefore;
+    private final GeneratorContext.ArgBuffer argBuffer = new GeneratorContext.ArgBuffer();
 
-    public Root(Element rootNode, final Generator generator, NamespaceContext namespaceContext, List<String> prefixes) {
-        this.rootNode = rootNode;
+    public Root(final SourceInput sourceInput, final JoinFiles.Session joinFiles, final SortedInputs sortedInputs,
+            ExpressionMemo expressionMemo, ConstantFolds constantFolds, ValueScopes valueScopes, Trace trace, final Generator generator, NamespaceContext namespaceContext, List<String> prefixes) {
+        this.sourceInput = sourceInput;
+        this.input = sourceInput;
+        this.expressionMemo = expressionMemo;
+        this.constantFolds = constantFolds;
+        this.valueScopes = valueScopes;
+        this.trace = trace;
+        this.memoInput = new ExpressionMemo.Input(sourceInput);
         Model model = ModelFactory.createDefaultModel();
         for (String prefix : prefixes) {
             model.setNsPrefix(prefix, namespaceContext.getNamespaceURI(prefix));
         }
         this.modelOutput = new ModelOutput(model, namespaceContext);
-        this.xpathInput = new XPathInput(rootNode, namespaceContext, generator.getLanguageFromMapping());
         this.context = new Context() {
 
             @Override
-            public XPathInput input() {
-                return xpathInput;
+            public SourceInput input() {
+                return input;
             }
 
             @Override
@@ -68,15 +90,65 @@ public class Root {
             }
 
             @Override
-            public GeneratedValue getGeneratedValue(String xpath) {
-                return generated.get(xpath);
+            public GeneratorContext.ArgBuffer argBuffer() {
+                return argBuffer;
             }
 
             @Override
-            public void putGeneratedValue(String xpath, GeneratedValue generatedValue) {
+            public Trace trace() {
+                return Root.this.trace;
+            }
+
+            @Override
+            public int mappingNumber() {
+                return mappingNumber;
+            }
+
+            @Override
+            public List<Node> rangeNodes(String rangeExpression, String rangeKeyPath, String keyValue) {
+                List<Node> nodes = joinFiles.rangeNodes(rangeExpression, rangeKeyPath, keyValue);
+                if (nodes != null) {
+                    return nodes;
+                }
+                return sourceInput.rootNodeList(rangeExpression, rangeKeyPath, keyValue);
+            }
+
+            @Override
+            public MergeJoin mergeJoin(LinkElement linkElement, String domainExpression, String domainKeyPath, String rangeExpression, String rangeKeyPath) {
+                if (mergeJoins.containsKey(linkElement)) {
+                    return mergeJoins.get(linkElement);
+                }
+                MergeJoin mergeJoin = null;
+                if (!joinFiles.contains(rangeExpression)
+                        && sortedInputs.isSorted(domainExpression, domainKeyPath)
+                        && sortedInputs.isSorted(rangeExpression, rangeKeyPath)) {
+                    mergeJoin = new MergeJoin(sourceInput, rangeExpression, rangeKeyPath + "/text()");
+                }
+                mergeJoins.put(linkElement, mergeJoin);
+                return mergeJoin;
+            }
+
+            @Override
+            public GeneratedValue getGeneratedValue(Node node, String unique) {
+                Map<Node, GeneratedValue> values = generated.get(unique);
+                return values == null ? null : values.get(key(node));
+            }
+
+            @Override
+            public void putGeneratedValue(Node node, String unique, GeneratedValue generatedValue) {
                 switch (generatedValue.type) {
                     case URI:
-                        generated.put(xpath, generatedValue);
+                        node = key(node);
+                        Map<Node, GeneratedValue> values = generated.get(unique);
+                        if (values == null) {
+                            values = new HashMap<Node, GeneratedValue>();
+                            generated.put(unique, values);
+                        }
+                        values.put(node, generatedValue);
+                        if (mapping != null && mapping.isLocal() && !mapping.isUsedLater(unique)) {
+                            Scope scope = domainScopes.isEmpty() ? mappingScope : domainScopes.get(domainScopes.size() - 1);
+                            scope.add(unique, node);
+                        }
                         break;
                     case LITERAL:
                         break;
@@ -91,31 +163,212 @@ public class Root {
         return modelOutput;
     }
 
-    public List<Domain> createDomainContexts(X3ML.DomainElement domain) {
-        List<Node> domainNodes = xpathInput.nodeList(rootNode, domain.source_node);
+    public Collection<MergeJoin> getMergeJoins() {
+        List<MergeJoin> list = new ArrayList<MergeJoin>();
+        for (MergeJoin mergeJoin : mergeJoins.values()) {
+            if (mergeJoin != null) {
+                list.add(mergeJoin);
+            }
+        }
+        return list;
+    }
+
+    public void startMapping(int mappingNumber, X3ML.Mapping mapping) {
+        endMapping();
+        this.mappingNumber = mappingNumber;
+        this.mapping = mapping;
+        this.mappingScope = new Scope(null);
+    }
+
+    /**
+     * Everything remembered about the previous domain node is forgotten,
+     * unless the new domain node lies within it.
+     */
+
+    public void startDomain(Node domainNode) {
+        if (mappingNumber >= 0 && expressionMemo.isEnabled(mappingNumber)) {
+            memoInput.clear();
+            input = memoInput;
+        }
+        for (int walk = domainScopes.size() - 1; walk >= 0; walk--) {
+            Scope scope = domainScopes.get(walk);
+            if (!isWithin(domainNode, scope.domainNode)) {
+                scope.evict();
+                domainScopes.remove(walk);
+            }
+        }
+        domainScopes.add(new Scope(domainNode));
+    }
+
+    public void endMapping() {
+        for (Scope scope : domainScopes) {
+            scope.evict();
+        }
+        domainScopes.clear();
+        if (mappingScope != null) {
+            mappingScope.evict();
+            mappingScope = null;
+        }
+        mapping = null;
+        if (mappingNumber >= 0) {
+            constantFolds.record(mappingNumber, modelOutput.getFolded() - foldedBefore);
+            valueScopes.record(mappingNumber, evicted - evictedBefore);
+        }
+        foldedBefore = modelOutput.getFolded();
+        evictedBefore = evicted;
+        if (input == memoInput) {
+            memoInput.clear();
+            expressionMemo.record(mappingNumber, memoInput.getHits(), memoInput.getMisses());
+            memoInput.resetCounts();
+            input = sourceInput;
+        }
+        mappingNumber = -1;
+    }
+
+    /**
+     * @return how many generated values are held right now
+     */
+
+    public int getGeneratedCount() {
+        int count = 0;
+        for (Map<Node, GeneratedValue> values : generated.values()) {
+            count += values.size();
+        }
+        return count;
+    }
+
+    private static boolean isWithin(Node node, Node ancestor) {
+        for (Node walk = node; walk != null; walk = walk.getParentNode()) {
+            if (walk.equals(ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The values generated while a domain node was processed in a local
+     * mapping, which no later mapping looks for. When the domain node is
+     * finished they can go, along with the value of the domain node itself.
+     */
+
+    private class Scope {
+        private final Node domainNode;
+        private final List<String> uniques = new ArrayList<String>();
+        private final List<Node> nodes = new ArrayList<Node>();
+
+        private Scope(Node domainNode) {
+            this.domainNode = domainNode;
+            if (domainNode != null && mapping.isLocal()) {
+                X3ML.TargetNode targetNode = mapping.domain.target_node;
+                if (targetNode != null && targetNode.entityElement != null
+                        && targetNode.entityElement.variable == null && targetNode.entityElement.typeElements != null) {
+                    String unique = targetNode.entityElement.getTypeSignature();
+                    if (!mapping.isUsedLater(unique)) {
+                        add(unique, domainNode);
+                    }
+                }
+            }
+        }
+
+        private void add(String unique, Node node) {
+            uniques.add(unique);
+            nodes.add(node);
+        }
+
+        private void evict() {
+            for (int walk = 0; walk < uniques.size(); walk++) {
+                Map<Node, GeneratedValue> values = generated.get(uniques.get(walk));
+                if (values != null && values.remove(nodes.get(walk)) != null) {
+                    evicted++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param slotCount the number of variable slots in the mapping, so each domain has room for all of them
+     */
+
+    public List<Domain> createDomainContexts(X3ML.DomainElement domain, int slotCount) {
         List<Domain> domains = new ArrayList<Domain>();
+        if (domain.filteredSource != null) {
+            Node rootNode = sourceInput.rootNode();
+            ConditionPushdown.Positions positions = new ConditionPushdown.Positions(sourceInput, rootNode, domain.source_node.expression);
+            for (Node domainNode : sourceInput.nodeList(rootNode, domain.filteredSource)) {
+                Domain domainContext = new Domain(context, domain, slotCount, domainNode, positions);
+                if (domainContext.resolve()) {
+                    domains.add(domainContext);
+                } else {
+                    unresolved(domainContext);
+                }
+            }
+            return domains;
+        }
+        List<Node> domainNodes = sourceInput.nodeList(sourceInput.rootNode(), domain.source_node);
         int index = 1;
         for (Node domainNode : domainNodes) {
-            Domain domainContext = new Domain(context, domain, domainNode, index++);
+            Domain domainContext = new Domain(context, domain, slotCount, domainNode, index++);
             if (domainContext.resolve()) {
                 domains.add(domainContext);
             } else {
-                System.out.println("Unresolved: " + domainContext);
+                unresolved(domainContext);
             }
         }
         return domains;
     }
 
+    /**
+     * Values have always been kept by the path of their node, and a DOM
+     * attribute has no parent, so attributes with the same name share their
+     * values. The first attribute seen with a name stands for all of them.
+     */
+
+    private Node key(Node node) {
+        if (node.getNodeType() != Node.ATTRIBUTE_NODE) {
+            return node;
+        }
+        Node key = attributeKeys.get(node.getNodeName());
+        if (key == null) {
+            attributeKeys.put(node.getNodeName(), key = node);
+        }
+        return key;
+    }
+
+    private void unresolved(Domain domainContext) {
+        if (trace.isOn(Trace.Level.WARN, mappingNumber)) {
+            trace.event(Trace.Level.WARN, "unresolved", mappingNumber).with("node", domainContext.toString()).write();
+        }
+    }
+
     public interface Context {
 
-        XPathInput input();
+        SourceInput input();
 
         ModelOutput output();
 
         Generator policy();
 
-        GeneratedValue getGeneratedValue(String xpath);
+        /**
+         * @return the one argument buffer of this execution
+         */
+
+        GeneratorContext.ArgBuffer argBuffer();
+
+        Trace trace();
+
+        int mappingNumber();
+
+        List<Node> rangeNodes(String rangeExpression, String rangeKeyPath, String keyValue);
+
+        /**
+         * @return a merge join if both sides are declared sorted, otherwise null
+         */
+
+        MergeJoin mergeJoin(LinkElement linkElement, String domainExpression, String domainKeyPath, String rangeExpression, String rangeKeyPath);
+
+        GeneratedValue getGeneratedValue(Node node, String unique);
 
-        void putGeneratedValue(String xpath, GeneratedValue generatedValue);
+        void putGeneratedValue(Node node, String unique, GeneratedValue generatedValue);
     }
 }
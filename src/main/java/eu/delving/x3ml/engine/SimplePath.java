@@ -0,0 +1,178 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.namespace.NamespaceContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Most expressions in a mapping are nothing more than a path of child
+ * elements, perhaps ending in an attribute or text(). These can be answered
+ * by walking the DOM directly, without going through the xpath engine.
+ * <p/>
+ * The walk gives what Saxon gives over a DOM: nodes in document order, and a
+ * run of adjacent text and CDATA nodes counts as one text node, represented
+ * by the first of them.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class SimplePath {
+
+    private static final Pattern QNAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_.\\-]*(:[A-Za-z_][A-Za-z0-9_.\\-]*)?");
+    private static final String TEXT = "text()";
+    private final String[] elementUris, elementNames;
+    private final String attributeUri, attributeName;
+    private final boolean text;
+
+    private SimplePath(String[] elementUris, String[] elementNames, String attributeUri, String attributeName, boolean text) {
+        this.elementUris = elementUris;
+        this.elementNames = elementNames;
+        this.attributeUri = attributeUri;
+        this.attributeName = attributeName;
+        this.text = text;
+    }
+
+    /**
+     * Classify an expression.
+     *
+     * @return the path, or null if the expression needs the xpath engine
+     */
+
+    public static SimplePath parse(String expression, NamespaceContext namespaceContext) {
+        String[] steps = expression.split("/", -1);
+        int elementCount = steps.length;
+        String attributeUri = null, attributeName = null;
+        boolean text = false;
+        String last = steps[steps.length - 1];
+        if (last.equals(TEXT)) {
+            text = true;
+            elementCount--;
+        }
+        else if (last.startsWith("@")) {
+            String[] name = resolve(last.substring(1), namespaceContext);
+            if (name == null) return null;
+            attributeUri = name[0];
+            attributeName = name[1];
+            elementCount--;
+        }
+        String[] elementUris = new String[elementCount];
+        String[] elementNames = new String[elementCount];
+        for (int walk = 0; walk < elementCount; walk++) {
+            String[] name = resolve(steps[walk], namespaceContext);
+            if (name == null) return null;
+            elementUris[walk] = name[0];
+            elementNames[walk] = name[1];
+        }
+        return new SimplePath(elementUris, elementNames, attributeUri, attributeName, text);
+    }
+
+    /**
+     * Whether an expression only steps down to child elements, perhaps
+     * ending in an attribute or text(), whatever its prefixes stand for.
+     * Such a path can never leave the subtree of its context node.
+     */
+
+    public static boolean isPlain(String expression) {
+        String[] steps = expression.split("/", -1);
+        for (int walk = 0; walk < steps.length; walk++) {
+            String step = steps[walk];
+            if (walk == steps.length - 1) {
+                if (step.equals(TEXT)) return true;
+                if (step.startsWith("@")) step = step.substring(1);
+            }
+            if (!QNAME.matcher(step).matches()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Walk the path from a context node.
+     *
+     * @return the nodes found, or null if the context is not something this walk can handle
+     */
+
+    public List<Node> evaluate(Node context) {
+        short type = context.getNodeType();
+        if (type != Node.ELEMENT_NODE && type != Node.DOCUMENT_NODE) {
+            return null;
+        }
+        List<Node> current = new ArrayList<Node>(1);
+        current.add(context);
+        for (int walk = 0; walk < elementNames.length; walk++) {
+            List<Node> next = new ArrayList<Node>();
+            for (Node node : current) {
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    if (child.getNodeType() != Node.ELEMENT_NODE) continue;
+                    if (child.getLocalName() == null) return null;
+                    if (matches(child, elementUris[walk], elementNames[walk])) next.add(child);
+                }
+            }
+            if (next.isEmpty()) return next;
+            current = next;
+        }
+        if (attributeName != null) {
+            List<Node> attributes = new ArrayList<Node>(current.size());
+            for (Node node : current) {
+                if (node.getNodeType() != Node.ELEMENT_NODE) continue;
+                Attr attr = ((Element) node).getAttributeNodeNS(attributeUri.isEmpty() ? null : attributeUri, attributeName);
+                if (attr != null) attributes.add(attr);
+            }
+            return attributes;
+        }
+        if (text) {
+            List<Node> texts = new ArrayList<Node>(current.size());
+            for (Node node : current) {
+                boolean inRun = false;
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    short childType = child.getNodeType();
+                    if (childType == Node.TEXT_NODE || childType == Node.CDATA_SECTION_NODE) {
+                        if (!inRun) texts.add(child);
+                        inRun = true;
+                    }
+                    else if (childType == Node.ENTITY_REFERENCE_NODE) {
+                        return null;
+                    }
+                    else {
+                        inRun = false;
+                    }
+                }
+            }
+            return texts;
+        }
+        return current;
+    }
+
+    private static boolean matches(Node node, String uri, String localName) {
+        if (!localName.equals(node.getLocalName())) return false;
+        String nodeUri = node.getNamespaceURI();
+        return uri.equals(nodeUri == null ? "" : nodeUri);
+    }
+
+    private static String[] resolve(String qualifiedName, NamespaceContext namespaceContext) {
+        if (!QNAME.matcher(qualifiedName).matches()) return null;
+        int colon = qualifiedName.indexOf(':');
+        if (colon < 0) return new String[]{"", qualifiedName};
+        String uri = namespaceContext.getNamespaceURI(qualifiedName.substring(0, colon));
+        if (uri == null || uri.isEmpty()) return null;
+        return new String[]{uri, qualifiedName.substring(colon + 1)};
+    }
+}
@@ -0,0 +1,66 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Source expressions whose nodes are known to arrive in ascending order of a
+ * key. An == join whose domain and range are both declared here is done as a
+ * merge join rather than through a hash index.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class SortedInputs {
+
+    private final Set<JoinIndex.Key> declared = new HashSet<JoinIndex.Key>();
+    private int merges;
+    private int fallbacks;
+
+    /**
+     * @param expression the domain or range source node expression
+     * @param keyPath the key as it appears in the join, without text()
+     */
+
+    public synchronized void declare(String expression, String keyPath) {
+        declared.add(new JoinIndex.Key(expression, keyPath));
+    }
+
+    public synchronized boolean isSorted(String expression, String keyPath) {
+        return declared.contains(new JoinIndex.Key(expression, keyPath));
+    }
+
+    public synchronized void record(Collection<MergeJoin> mergeJoins) {
+        for (MergeJoin mergeJoin : mergeJoins) {
+            if (mergeJoin.isFallenBack()) {
+                fallbacks++;
+            }
+            else {
+                merges++;
+            }
+        }
+    }
+
+    public synchronized int getMerges() {
+        return merges;
+    }
+
+    public synchronized int getFallbacks() {
+        return fallbacks;
+    }
+}
@@ -0,0 +1,66 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.dom.DOMSource;
+
+import static eu.delving.x3ml.X3MLEngine.exception;
+
+/**
+ * The source input backends that come with the engine. Others can be plugged
+ * in by implementing SourceInput.Factory.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public enum SourceBackend implements SourceInput.Factory {
+
+    DOM {
+        @Override
+        public SourceInput create(Element sourceRoot, XPathCache xpathCache, NamespaceContext namespaceContext, String languageFromMapping) {
+            return new XPathInput(sourceRoot, xpathCache, namespaceContext, languageFromMapping);
+        }
+    },
+
+    TINY_TREE {
+        @Override
+        public SourceInput create(Element sourceRoot, XPathCache xpathCache, NamespaceContext namespaceContext, String languageFromMapping) {
+            Document document = sourceRoot.getOwnerDocument();
+            if (document.getDocumentElement() != sourceRoot) {
+                document = newDocument();
+                document.appendChild(document.importNode(sourceRoot, true));
+            }
+            Element treeRoot = XdmInput.documentElement(XdmInput.build(new DOMSource(document)));
+            return new XdmInput(treeRoot, xpathCache, namespaceContext, languageFromMapping);
+        }
+    };
+
+    private static Document newDocument() {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder().newDocument();
+        }
+        catch (ParserConfigurationException e) {
+            throw exception("Unable to create document", e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.namespace.NamespaceContext;
+import java.util.Collection;
+import java.util.List;
+
+import static eu.delving.x3ml.engine.X3ML.ArgValue;
+import static eu.delving.x3ml.engine.X3ML.GeneratorElement;
+import static eu.delving.x3ml.engine.X3ML.Source;
+import static eu.delving.x3ml.engine.X3ML.SourceType;
+
+/**
+ * This is what the source data looks like to the internal code. Nodes are
+ * handed around as DOM nodes, but how they are stored and how expressions
+ * are evaluated against them is up to the backend.
+ * <p/>
+ * A backend is chosen when the engine is loaded, with the Factory creating
+ * an input for every execution.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public interface SourceInput {
+
+    Node rootNode();
+
+    List<Node> nodeList(Node context, String expression);
+
+    List<Node> nodeList(Node node, Source source);
+
+    Node firstNode(Node node, String expression);
+
+    String valueAt(Node node, String expression);
+
+    int countNodes(Node node, String expression);
+
+    List<Node> rootNodeList(String rangeExpression, String rangeKeyPath, String keyValue);
+
+    Collection<JoinIndex> getJoinIndexes();
+
+    IntermediateIndex intermediateIndex(String nodeExpression, String firstPath, String secondPath);
+
+    boolean isThreadSafe();
+
+    ArgValue evaluateArgument(Node node, int index, GeneratorElement generatorElement, String argName, SourceType defaultType);
+
+    String getLanguage(Node node);
+
+    interface Factory {
+
+        SourceInput create(Element sourceRoot, XPathCache xpathCache, NamespaceContext namespaceContext, String languageFromMapping);
+    }
+}
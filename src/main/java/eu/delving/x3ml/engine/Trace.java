@@ -0,0 +1,200 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static eu.delving.x3ml.X3MLEngine.exception;
+
+/**
+ * What the engine does while mapping, written as one JSON object per line
+ * for offline analysis. Every event has a level and belongs to a mapping,
+ * and some also to a link or a generator. Without toggles all mappings,
+ * links and generators are traced, and each toggle narrows its kind down
+ * to the ones given.
+ * <p/>
+ * Callers ask isOn before building an event, so while the trace is off
+ * nothing is built and the only cost is a comparison.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class Trace {
+
+    public enum Level {
+        OFF, WARN, INFO, DEBUG
+    }
+
+    public static final Trace OFF = new Trace(Level.OFF, null);
+
+    private final Level level;
+    private final Writer writer;
+    private Set<Integer> mappings;
+    private Set<Long> links;
+    private Set<String> generators;
+
+    public Trace(Level level, Writer writer) {
+        if (level != Level.OFF && writer == null) {
+            throw exception("Trace needs a writer");
+        }
+        this.level = level;
+        this.writer = writer;
+    }
+
+    public Trace mapping(int mappingNumber) {
+        if (mappings == null) {
+            mappings = new HashSet<Integer>();
+        }
+        mappings.add(mappingNumber);
+        return this;
+    }
+
+    public Trace link(int mappingNumber, int linkNumber) {
+        if (links == null) {
+            links = new HashSet<Long>();
+        }
+        links.add(linkKey(mappingNumber, linkNumber));
+        return this;
+    }
+
+    public Trace generator(String name) {
+        if (generators == null) {
+            generators = new HashSet<String>();
+        }
+        generators.add(name);
+        return this;
+    }
+
+    public boolean isOn(Level level) {
+        return level.ordinal() <= this.level.ordinal();
+    }
+
+    public boolean isOn(Level level, int mappingNumber) {
+        return isOn(level) && (mappings == null || mappings.contains(mappingNumber));
+    }
+
+    public boolean isOn(Level level, int mappingNumber, int linkNumber) {
+        return isOn(level, mappingNumber) && (links == null || links.contains(linkKey(mappingNumber, linkNumber)));
+    }
+
+    public boolean isOn(Level level, int mappingNumber, String generatorName) {
+        return isOn(level, mappingNumber) && (generators == null || generators.contains(generatorName));
+    }
+
+    public Event event(Level level, String kind, int mappingNumber) {
+        return new Event(level, kind).with("mapping", mappingNumber);
+    }
+
+    public void flush() {
+        if (writer == null) {
+            return;
+        }
+        synchronized (writer) {
+            try {
+                writer.flush();
+            }
+            catch (IOException e) {
+                throw exception("Unable to write trace", e);
+            }
+        }
+    }
+
+    private static long linkKey(int mappingNumber, int linkNumber) {
+        return ((long) mappingNumber << 32) | linkNumber;
+    }
+
+    /**
+     * One line of the trace, built up field by field and then written.
+     */
+
+    public class Event {
+        private final StringBuilder line = new StringBuilder("{");
+
+        private Event(Level level, String kind) {
+            with("level", level.toString()).with("event", kind);
+        }
+
+        public Event with(String name, String value) {
+            if (value == null) {
+                return this;
+            }
+            field(name);
+            line.append('"');
+            for (int walk = 0; walk < value.length(); walk++) {
+                char c = value.charAt(walk);
+                switch (c) {
+                    case '"':
+                        line.append("\\\"");
+                        break;
+                    case '\\':
+                        line.append("\\\\");
+                        break;
+                    case '\n':
+                        line.append("\\n");
+                        break;
+                    case '\r':
+                        line.append("\\r");
+                        break;
+                    case '\t':
+                        line.append("\\t");
+                        break;
+                    default:
+                        if (c < ' ') {
+                            line.append(String.format("\\u%04x", (int) c));
+                        }
+                        else {
+                            line.append(c);
+                        }
+                }
+            }
+            line.append('"');
+            return this;
+        }
+
+        public Event with(String name, long value) {
+            field(name);
+            line.append(value);
+            return this;
+        }
+
+        public Event with(String name, boolean value) {
+            field(name);
+            line.append(value);
+            return this;
+        }
+
+        public void write() {
+            line.append("}\n");
+            synchronized (writer) {
+                try {
+                    writer.write(line.toString());
+                }
+                catch (IOException e) {
+                    throw exception("Unable to write trace", e);
+                }
+            }
+        }
+
+        private void field(String name) {
+            if (line.length() > 1) {
+                line.append(',');
+            }
+            line.append('"').append(name).append("\":");
+        }
+    }
+}
@@ -0,0 +1,78 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Values generated in a local mapping are let go when their domain node is
+ * finished, unless a later mapping may ask for them. Here the engine
+ * gathers how many were let go in each mapping, numbered from zero in the
+ * order they appear, and how many values were still held when the last
+ * execution ended.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class ValueScopes {
+
+    private final Map<Integer, long[]> evicted = new TreeMap<Integer, long[]>();
+    private int held;
+
+    public synchronized void record(int mappingNumber, long count) {
+        if (count == 0) {
+            return;
+        }
+        long[] total = evicted.get(mappingNumber);
+        if (total == null) {
+            evicted.put(mappingNumber, total = new long[1]);
+        }
+        total[0] += count;
+    }
+
+    public synchronized void recordHeld(int count) {
+        held = count;
+    }
+
+    public synchronized long getEvicted(int mappingNumber) {
+        long[] total = evicted.get(mappingNumber);
+        return total == null ? 0 : total[0];
+    }
+
+    public synchronized long getEvicted() {
+        long sum = 0;
+        for (long[] total : evicted.values()) {
+            sum += total[0];
+        }
+        return sum;
+    }
+
+    /**
+     * @return how many generated values were held when the last execution ended
+     */
+
+    public synchronized int getHeld() {
+        return held;
+    }
+
+    public synchronized String toString() {
+        StringBuilder out = new StringBuilder("ValueScopes(held=").append(held).append(")");
+        for (Map.Entry<Integer, long[]> entry : evicted.entrySet()) {
+            out.append("\n  mapping ").append(entry.getKey()).append(": ").append(entry.getValue()[0]).append(" generated values let go");
+        }
+        return out.toString();
+    }
+}
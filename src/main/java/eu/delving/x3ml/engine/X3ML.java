@@ -32,9 +32,15 @@ import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import com.thoughtworks.xstream.io.naming.NoNameCoder;
 import com.thoughtworks.xstream.io.xml.XppDriver;
 
+import javax.xml.namespace.NamespaceContext;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static eu.delving.x3ml.X3MLEngine.exception;
 
@@ -78,9 +84,24 @@ public interface X3ML {
         public List<Mapping> mappings;
 
         public void apply(Root context) {
+            int mappingNumber = 0;
             for (Mapping mapping : mappings) {
+                context.startMapping(mappingNumber++, mapping);
                 mapping.apply(context);
             }
+            context.endMapping();
+        }
+
+        public void bind() {
+            for (Mapping mapping : mappings) {
+                mapping.bind();
+            }
+            Set<String> later = new HashSet<String>();
+            for (int walk = mappings.size() - 1; walk >= 0; walk--) {
+                Mapping mapping = mappings.get(walk);
+                mapping.laterSignatures = new HashSet<String>(later);
+                later.addAll(mapping.signatures);
+            }
         }
 
         @XStreamOmitField
@@ -95,84 +116,225 @@ public interface X3ML {
         @XStreamImplicit
         public List<LinkElement> links;
 
+        @XStreamOmitField
+        private volatile Set<String> signatures;
+
+        @XStreamOmitField
+        private volatile Set<String> laterSignatures;
+
+        @XStreamOmitField
+        private volatile boolean local;
+
+        @XStreamOmitField
+        private volatile int slotCount;
+
         public void apply(Root context) {
-            for (Domain domain : context.createDomainContexts(this.domain)) {
+            for (Domain domain : context.createDomainContexts(this.domain, slotCount)) {
+                context.startDomain(domain.node);
                 domain.resolve();
                 if (links == null) {
                     continue;
                 }
-                for (LinkElement linkElement : links) {
-                    linkElement.apply(domain);
+                for (int walk = 0; walk < links.size(); walk++) {
+                    links.get(walk).apply(domain, walk);
                 }
             }
         }
-    }
-
-    @XStreamAlias("link")
-    public static class LinkElement extends Visible {
 
-        public PathElement path;
+        public void bind() {
+            Map<String, Integer> slots = new HashMap<String, Integer>();
+            Set<String> signatures = new HashSet<String>();
+            boolean local = true;
+            if (domain.target_node != null) {
+                domain.target_node.bind();
+                bindEntity(domain.target_node.entityElement, slots, signatures);
+            }
+            if (links != null) {
+                for (LinkElement linkElement : links) {
+                    linkElement.bind();
+                    if (linkElement.path.target_relation != null && linkElement.path.target_relation.entities != null) {
+                        for (EntityElement entityElement : linkElement.path.target_relation.entities) {
+                            bindEntity(entityElement, slots, signatures);
+                        }
+                    }
+                    if (linkElement.range != null && linkElement.range.target_node != null) {
+                        bindEntity(linkElement.range.target_node.entityElement, slots, signatures);
+                    }
+                    SourceRelation sourceRelation = linkElement.path.source_relation;
+                    local &= sourceRelation.node == null && sourceRelation.relation2 == null
+                            && isDescending(sourceRelation.relation.expression)
+                            && linkElement.range != null && linkElement.range.source_node != null
+                            && isDescending(linkElement.range.source_node.expression);
+                }
+            }
+            this.signatures = signatures;
+            this.local = local;
+            this.slotCount = slots.size();
+        }
 
-        public RangeElement range;
+        /**
+         * A mapping is local when its links only reach down into the domain
+         * node, so what is generated for one domain node cannot be asked for
+         * from another.
+         */
 
-        public void apply(Domain domain) {
-            String pathSource = this.path.source_relation.relation.expression;
-            String pathSource2 = "";
-            String node_inside = "";
+        public boolean isLocal() {
+            return local;
+        }
 
-            System.out.println(pathSource);
-            if (this.path.source_relation.relation2 != null) {
-                pathSource2 = this.path.source_relation.relation2.expression;
-                System.out.println("pathSource2: " + pathSource2);
-            }
+        /**
+         * @return whether a later mapping has an entity with this type signature
+         */
 
-            if (this.path.source_relation.node != null) {
-                node_inside = this.path.source_relation.node.expression;
-                System.out.println("node: " + node_inside);
-            }
+        public boolean isUsedLater(String signature) {
+            return laterSignatures == null || laterSignatures.contains(signature);
+        }
 
-            if (this.path.source_relation.node != null) {
+        /**
+         * Only plain child steps are sure to stay below the domain node. Any
+         * function, axis or predicate may jump elsewhere, like id(@ref) does.
+         */
 
-                int equals = pathSource.indexOf("==");
+        private static boolean isDescending(String expression) {
+            return expression != null && SimplePath.isPlain(expression.trim());
+        }
 
-                if (equals >= 0) {
+        /**
+         * Variables live as long as a domain node, so every variable name in
+         * the mapping gets its own slot in the domain. Entities without a
+         * variable are remembered by their type signature.
+         */
 
-                    String domainForeignKey = pathSource.trim();
-                    String rangePrimaryKey = pathSource2.trim();
+        private static void bindEntity(EntityElement entityElement, Map<String, Integer> slots, Set<String> signatures) {
+            if (entityElement == null) {
+                return;
+            }
+            if (entityElement.variable != null) {
+                Integer slot = slots.get(entityElement.variable);
+                if (slot == null) {
+                    slots.put(entityElement.variable, slot = slots.size());
+                }
+                entityElement.variableSlot = slot + 1;
+            }
+            else if (entityElement.typeElements != null) {
+                signatures.add(entityElement.getTypeSignature());
+            }
+            if (entityElement.additionals != null) {
+                for (Additional additional : entityElement.additionals) {
+                    bindEntity(additional.entityElement, slots, signatures);
+                }
+            }
+        }
+    }
 
-                    String intermediateFirst = domainForeignKey.substring(domainForeignKey.indexOf("==") + 2).trim();
-                    String intermediateSecond = rangePrimaryKey.substring(0, rangePrimaryKey.indexOf("==")).trim();
+    @XStreamAlias("link")
+    public static class LinkElement extends Visible {
 
-                    domainForeignKey = domainForeignKey.substring(0, domainForeignKey.indexOf("==")).trim();
-                    rangePrimaryKey = rangePrimaryKey.substring(rangePrimaryKey.indexOf("==") + 2).trim();
+        public PathElement path;
 
-                    for (Link link : domain.createLinkContexts(this, domainForeignKey, rangePrimaryKey,
-                            intermediateFirst, intermediateSecond, node_inside)) {
-                        link.range.link();
-                    }
+        public RangeElement range;
 
+        @XStreamOmitField
+        private volatile Join join;
+
+        public void apply(Domain domain, int linkNumber) {
+            Join join = getJoin();
+            Trace trace = domain.context.trace();
+            int mappingNumber = domain.context.mappingNumber();
+            boolean traced = trace.isOn(Trace.Level.INFO, mappingNumber, linkNumber);
+            if (traced) {
+                trace.event(Trace.Level.INFO, "link", mappingNumber).with("link", linkNumber)
+                        .with("domain", domain.toString()).with("path", join.pathSource)
+                        .with("path2", join.pathSource2).with("inside", join.nodeInside).write();
+            }
+            if (join.intermediateFirst != null) {
+                for (Link link : domain.createLinkContexts(this, join.domainForeignKey, join.rangePrimaryKey,
+                        join.intermediateFirst, join.intermediateSecond, join.nodeInside)) {
+                    link.range.link();
                 }
-            } else if (pathSource.contains("==")) {
-
-                int equals = pathSource.indexOf("==");
-                if (equals >= 0) {
-                    String domainForeignKey = pathSource.substring(0, equals).trim();
-                    String rangePrimaryKey = pathSource.substring(equals + 2).trim();
-                    for (Link link : domain.createLinkContexts(this, domainForeignKey, rangePrimaryKey)) {
-                        link.range.link();
-                    }
+            } else if (join.domainForeignKey != null) {
+                for (Link link : domain.createLinkContexts(this, join.domainForeignKey, join.rangePrimaryKey)) {
+                    link.range.link();
                 }
-
-            } else {
-                System.out.println(this.path);
+            } else if (join.nodeInside == null) {
                 for (Path path : domain.createPathContexts(this.path)) {
-                    System.out.println(this.path);
+                    if (traced && trace.isOn(Trace.Level.DEBUG)) {
+                        trace.event(Trace.Level.DEBUG, "path", mappingNumber).with("link", linkNumber)
+                                .with("node", path.toString()).write();
+                    }
                     for (Range range : path.createRangeContexts(this.range)) {
                         range.link();
                     }
                 }
             }
         }
+
+        public Join getJoin() {
+            if (join == null) {
+                join = new Join(path.source_relation);
+            }
+            return join;
+        }
+
+        public void bind() {
+            getJoin();
+            if (path.target_relation != null) {
+                path.target_relation.bind();
+            }
+            if (range != null && range.target_node != null) {
+                range.target_node.bind();
+            }
+        }
+    }
+
+    /**
+     * The == join syntax of a source relation taken apart once. Without a
+     * node it is domainKey == rangeKey, and with a node the two relations
+     * are domainKey == intermediateFirst and intermediateSecond == rangeKey,
+     * both within the node. A relation with a node but no == does nothing.
+     */
+
+    public static class Join {
+
+        public final String pathSource;
+        public final String pathSource2;
+        public final String nodeInside;
+        public final String domainForeignKey;
+        public final String rangePrimaryKey;
+        public final String intermediateFirst;
+        public final String intermediateSecond;
+
+        public Join(SourceRelation sourceRelation) {
+            this.pathSource = sourceRelation.relation.expression;
+            this.pathSource2 = sourceRelation.relation2 == null ? null : sourceRelation.relation2.expression;
+            this.nodeInside = sourceRelation.node == null ? null : sourceRelation.node.expression;
+            int equals = pathSource.indexOf("==");
+            if (nodeInside != null && equals >= 0) {
+                String second = pathSource2 == null ? "" : pathSource2.trim();
+                int secondEquals = second.indexOf("==");
+                if (secondEquals < 0) {
+                    throw exception("Second relation of a join within a node needs ==: " + pathSource);
+                }
+                String first = pathSource.trim();
+                equals = first.indexOf("==");
+                this.domainForeignKey = first.substring(0, equals).trim();
+                this.intermediateFirst = first.substring(equals + 2).trim();
+                this.intermediateSecond = second.substring(0, secondEquals).trim();
+                this.rangePrimaryKey = second.substring(secondEquals + 2).trim();
+            }
+            else if (nodeInside == null && equals >= 0) {
+                this.domainForeignKey = pathSource.substring(0, equals).trim();
+                this.rangePrimaryKey = pathSource.substring(equals + 2).trim();
+                this.intermediateFirst = null;
+                this.intermediateSecond = null;
+            }
+            else {
+                this.domainForeignKey = null;
+                this.rangePrimaryKey = null;
+                this.intermediateFirst = null;
+                this.intermediateSecond = null;
+            }
+        }
     }
 
     @XStreamAlias("namespace")
@@ -198,6 +360,13 @@ public interface X3ML {
         public TargetNode target_node;
 
         public Comments comments;
+
+        /**
+         * The source with the condition as a predicate, if it could be pushed down.
+         */
+
+        @XStreamOmitField
+        public volatile String filteredSource;
     }
 
     @XStreamAlias("target_relation")
@@ -209,6 +378,46 @@ public interface X3ML {
         public List<Relationship> properties;
 
         public List<EntityElement> entities;
+
+        @XStreamOmitField
+        private volatile String arityProblem;
+
+        @XStreamOmitField
+        private volatile boolean arityChecked;
+
+        public void bind() {
+            if (condition != null) {
+                condition.bind();
+            }
+            if (entities != null) {
+                for (EntityElement entityElement : entities) {
+                    entityElement.bind();
+                }
+            }
+            getArityProblem();
+        }
+
+        /**
+         * @return what is wrong with the number of properties and entities, or null
+         */
+
+        public String getArityProblem() {
+            if (!arityChecked) {
+                if (properties == null || properties.isEmpty()) {
+                    arityProblem = "Target relation must have at least one property";
+                }
+                else if (entities != null) {
+                    if (entities.size() + 1 != properties.size()) {
+                        arityProblem = "Target relation must have one more property than entity";
+                    }
+                }
+                else if (properties.size() != 1) {
+                    arityProblem = "Target relation must just one property if it has no entities";
+                }
+                arityChecked = true;
+            }
+            return arityProblem;
+        }
     }
 
     public static class TargetRelationConverter implements Converter {
@@ -273,6 +482,15 @@ public interface X3ML {
 
         @XStreamAlias("entity")
         public EntityElement entityElement;
+
+        public void bind() {
+            if (condition != null) {
+                condition.bind();
+            }
+            if (entityElement != null) {
+                entityElement.bind();
+            }
+        }
     }
 
     @XStreamAlias("path")
@@ -301,6 +519,13 @@ public interface X3ML {
         public TargetNode target_node;
 
         public Comments comments;
+
+        /**
+         * The source with the condition as a predicate, if it could be pushed down.
+         */
+
+        @XStreamOmitField
+        public volatile String filteredSource;
     }
 
     @XStreamAlias("additional")
@@ -323,33 +548,53 @@ public interface X3ML {
         public OrCondition or;
         public NotCondition not;
 
-        private static class Outcome {
-
-            final GeneratorContext context;
-            boolean failure;
+        @XStreamOmitField
+        private volatile YesOrNo[] compiled;
 
-            private Outcome(GeneratorContext context) {
-                this.context = context;
+        public boolean failure(GeneratorContext context) {
+            YesOrNo[] parts = compiled;
+            if (parts == null) {
+                compiled = parts = compile();
             }
-
-            Outcome evaluate(YesOrNo yesOrNo) {
-                if (yesOrNo != null && !failure && !yesOrNo.yes(context)) {
-                    failure = true;
+            for (YesOrNo part : parts) {
+                if (!part.yes(context)) {
+                    return true;
                 }
-                return this;
             }
+            return false;
         }
 
-        public boolean failure(GeneratorContext context) {
-            return new Outcome(context)
-                    .evaluate(narrower)
-                    .evaluate(exists)
-                    .evaluate(equals)
-                    .evaluate(and)
-                    .evaluate(or)
-                    .evaluate(not).failure;
+        /**
+         * Gather the parts that can fail, in the order they are tested, and
+         * do the same for the conditions nested inside them.
+         */
+
+        public void bind() {
+            compiled = compile();
+            if (and != null) {
+                for (Condition condition : and.list) {
+                    condition.bind();
+                }
+            }
+            if (or != null) {
+                for (Condition condition : or.list) {
+                    condition.bind();
+                }
+            }
+            if (not != null) {
+                not.condition.bind();
+            }
         }
 
+        private YesOrNo[] compile() {
+            List<YesOrNo> parts = new ArrayList<YesOrNo>();
+            for (YesOrNo part : new YesOrNo[]{exists, equals, and, or, not}) {
+                if (part != null) {
+                    parts.add(part);
+                }
+            }
+            return parts.toArray(new YesOrNo[parts.size()]);
+        }
     }
 
     interface YesOrNo {
@@ -365,7 +610,7 @@ public interface X3ML {
 
         @Override
         public boolean yes(GeneratorContext context) {
-            return context.evaluate(expression).length() > 0;
+            return context.exists(expression);
         }
     }
 
@@ -380,7 +625,7 @@ public interface X3ML {
 
         @Override
         public boolean yes(GeneratorContext context) {
-            return value.equals(context.evaluate(expression));
+            return context.valueEquals(expression, value);
         }
     }
 
@@ -407,13 +652,12 @@ public interface X3ML {
 
         @Override
         public boolean yes(GeneratorContext context) {
-            boolean result = true;
             for (Condition condition : list) {
                 if (condition.failure(context)) {
-                    result = false;
+                    return false;
                 }
             }
-            return result;
+            return true;
         }
     }
 
@@ -425,13 +669,12 @@ public interface X3ML {
 
         @Override
         public boolean yes(GeneratorContext context) {
-            boolean result = false;
             for (Condition condition : list) {
                 if (!condition.failure(context)) {
-                    result = true;
+                    return true;
                 }
             }
-            return result;
+            return false;
         }
     }
 
@@ -453,6 +696,9 @@ public interface X3ML {
 
         public String tag;
 
+        @XStreamOmitField
+        private volatile String uri;
+
         public String getPrefix() {
             int colon = tag.indexOf(':');
             if (colon < 0) {
@@ -468,6 +714,18 @@ public interface X3ML {
             }
             return tag.substring(colon + 1);
         }
+
+        /**
+         * The namespaces of a mapping never change, so the tag is only
+         * resolved the first time.
+         */
+
+        public String getUri(NamespaceContext namespaceContext) {
+            if (uri == null) {
+                uri = namespaceContext.getNamespaceURI(getPrefix()) + getLocalName();
+            }
+            return uri;
+        }
     }
 
     @XStreamAlias("instance_info") // documentation purposes only
@@ -500,8 +758,65 @@ public interface X3ML {
         @XStreamImplicit
         public List<Additional> additionals;
 
+        @XStreamOmitField
+        private volatile String typeSignature;
+
+        @XStreamOmitField
+        private volatile int variableSlot; // one more than the slot, zero until bound
+
         public GeneratedValue getInstance(GeneratorContext context, String unique) {
-            return context.getInstance(instanceGenerator, variable, unique);
+            return context.getInstance(instanceGenerator, getVariableSlot(), unique);
+        }
+
+        /**
+         * @return the slot of the variable in its domain, or -1 if there is no variable
+         */
+
+        public int getVariableSlot() {
+            if (variable == null) {
+                return -1;
+            }
+            if (variableSlot == 0) {
+                throw exception("Variable not bound: " + variable);
+            }
+            return variableSlot - 1;
+        }
+
+        /**
+         * The type tags joined together, which tell apart the values
+         * generated for one node.
+         */
+
+        public String getTypeSignature() {
+            if (typeSignature == null) {
+                StringBuilder signature = new StringBuilder();
+                for (TypeElement typeElement : typeElements) {
+                    signature.append('-').append(typeElement.tag);
+                }
+                typeSignature = signature.toString();
+            }
+            return typeSignature;
+        }
+
+        public void bind() {
+            if (typeElements != null) {
+                getTypeSignature();
+            }
+            if (instanceGenerator != null) {
+                instanceGenerator.bind();
+            }
+            if (labelGenerators != null) {
+                for (GeneratorElement labelGenerator : labelGenerators) {
+                    labelGenerator.bind();
+                }
+            }
+            if (additionals != null) {
+                for (Additional additional : additionals) {
+                    if (additional.entityElement != null) {
+                        additional.entityElement.bind();
+                    }
+                }
+            }
         }
     }
 
@@ -514,9 +829,19 @@ public interface X3ML {
         @XStreamOmitField
         public String namespaceUri;
 
+        @XStreamOmitField
+        private volatile String uri;
+
         public TypeElement() {
         }
 
+        public String getUri(NamespaceContext namespaceContext) {
+            if (uri == null) {
+                uri = namespaceContext.getNamespaceURI(getPrefix()) + getLocalName();
+            }
+            return uri;
+        }
+
         public TypeElement(String tag, String namespaceUri) {
             this.tag = tag;
             this.namespaceUri = namespaceUri;
@@ -565,6 +890,124 @@ public interface X3ML {
 
         @XStreamImplicit
         public List<GeneratorArg> args;
+
+        @XStreamOmitField
+        private volatile Map<String, ArgBinding> bindings;
+
+        @XStreamOmitField
+        private volatile String labelSignature;
+
+        @XStreamOmitField
+        private volatile Map<String, SourceType> argTypes;
+
+        @XStreamOmitField
+        private volatile ConstantCheck constantCheck;
+
+        /**
+         * Resolve the arguments once so that evaluating them is only a lookup.
+         * An argument without a name is the "text" argument, and when a name
+         * appears twice the last one counts.
+         */
+
+        public void bind() {
+            Map<String, ArgBinding> map = new HashMap<String, ArgBinding>();
+            Map<String, SourceType> types = new HashMap<String, SourceType>();
+            if (args != null) {
+                for (GeneratorArg arg : args) {
+                    String argName = arg.name == null ? "text" : arg.name;
+                    SourceType type = arg.type == null ? null : SourceType.valueOf(arg.type);
+                    ArgBinding existing = map.get(argName);
+                    map.put(argName, new ArgBinding(existing == null ? map.size() : existing.slot, arg, type));
+                    types.put(argName, type);
+                }
+            }
+            argTypes = Collections.unmodifiableMap(types);
+            bindings = map;
+            labelSignature = "-" + name;
+        }
+
+        /**
+         * The generator decides whether it gives the same value at every node,
+         * and since that only depends on the declared argument types the
+         * answer is kept for the generator that was last asked.
+         */
+
+        public boolean isConstant(Generator generator) {
+            if (bindings == null) {
+                bind();
+            }
+            ConstantCheck check = constantCheck;
+            if (check == null || check.generator != generator) {
+                constantCheck = check = new ConstantCheck(generator, generator.isConstant(name, argTypes));
+            }
+            return check.constant;
+        }
+
+        public String getLabelSignature() {
+            if (bindings == null) {
+                bind();
+            }
+            return labelSignature;
+        }
+
+        public ArgBinding getBinding(String argName) {
+            if (bindings == null) {
+                bind();
+            }
+            return bindings.get(argName);
+        }
+
+        public int getSlotCount() {
+            if (bindings == null) {
+                bind();
+            }
+            return bindings.size();
+        }
+
+        private static class ConstantCheck {
+            final Generator generator;
+            final boolean constant;
+
+            ConstantCheck(Generator generator, boolean constant) {
+                this.generator = generator;
+                this.constant = constant;
+            }
+        }
+    }
+
+    public static class ArgBinding {
+
+        public final int slot;
+        public final GeneratorArg arg;
+        public final SourceType type; // null when the generator decides
+        private volatile ArgValue constantValue;
+
+        public ArgBinding(int slot, GeneratorArg arg, SourceType type) {
+            this.slot = slot;
+            this.arg = arg;
+            this.type = type;
+        }
+
+        public SourceType getType(SourceType defaultType) {
+            return type == null ? defaultType : type;
+        }
+
+        /**
+         * A constant argument gives the same value every time, so it is
+         * shared rather than made anew.
+         */
+
+        public ArgValue getConstantValue(String language) {
+            ArgValue value = constantValue;
+            if (value == null || !equal(value.language, language)) {
+                constantValue = value = new ArgValue(arg.value, language);
+            }
+            return value;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
     }
 
     @XStreamAlias("arg")
@@ -689,20 +1132,36 @@ public interface X3ML {
             return "\n" + x3mlStream().toXML(thing);
         }
 
+        /**
+         * The streams are configured once, on first use, and then shared.
+         * An XStream is thread-safe once configured, and processing the
+         * annotations costs far more than reading a small file. Callers
+         * must not configure them further.
+         */
+
         public static XStream generatorStream() {
-            XStream xstream = new XStream(new PureJavaReflectionProvider(), new XppDriver(new NoNameCoder()));
-            xstream.setMode(XStream.NO_REFERENCES);
-            xstream.processAnnotations(GeneratorPolicy.class);
-            return xstream;
+            return GeneratorStream.XSTREAM;
         }
 
         public static XStream x3mlStream() {
+            return X3MLStream.XSTREAM;
+        }
+
+        private static XStream createStream(Class<?> rootClass) {
             XStream xstream = new XStream(new PureJavaReflectionProvider(), new XppDriver(new NoNameCoder()));
             xstream.setMode(XStream.NO_REFERENCES);
-            xstream.processAnnotations(RootElement.class);
+            xstream.processAnnotations(rootClass);
             return xstream;
         }
 
+        private static class GeneratorStream {
+            static final XStream XSTREAM = createStream(GeneratorPolicy.class);
+        }
+
+        private static class X3MLStream {
+            static final XStream XSTREAM = createStream(RootElement.class);
+        }
+
         public static ArgValue argVal(String string, String language) {
             return new ArgValue(string, language);
         }
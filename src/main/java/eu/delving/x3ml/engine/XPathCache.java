@@ -0,0 +1,200 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import net.sf.saxon.om.NamespaceResolver;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.sxpath.IndependentContext;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiled xpath expressions are kept here, held by the engine so that they
+ * survive from one execution to the next. A mapping only has a limited number
+ * of expressions, but they are evaluated for every record.
+ * <p/>
+ * Both JAXP expressions for DOM input and s9api executables for TinyTree
+ * input are kept, as well as which expressions are simple enough to be
+ * walked directly over a DOM. The cache is bounded, dropping the least recently used
+ * expression, and it can be shared between threads.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class XPathCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 2000;
+    private final XPathFactory pathFactory = net.sf.saxon.xpath.XPathFactoryImpl.newInstance();
+    private final Map<Key, XPathExpression> expressions;
+    private final Map<Key, XPathExecutable> executables;
+    private final Map<Key, SimplePath> simplePaths;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong fastPaths = new AtomicLong();
+
+    public XPathCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public XPathCache(int maximumSize) {
+        this.expressions = new LeastRecentlyUsed<XPathExpression>(maximumSize);
+        this.executables = new LeastRecentlyUsed<XPathExecutable>(maximumSize);
+        this.simplePaths = new LeastRecentlyUsed<SimplePath>(maximumSize);
+    }
+
+    public SimplePath simplePath(String expression, NamespaceContext namespaceContext) {
+        Key key = new Key(expression, namespaceContext);
+        synchronized (simplePaths) {
+            if (simplePaths.containsKey(key)) {
+                return simplePaths.get(key);
+            }
+            SimplePath simplePath = SimplePath.parse(expression, namespaceContext);
+            simplePaths.put(key, simplePath);
+            return simplePath;
+        }
+    }
+
+    public void countFastPath() {
+        fastPaths.incrementAndGet();
+    }
+
+    public XPathExpression compile(String expression, NamespaceContext namespaceContext) throws XPathExpressionException {
+        Key key = new Key(expression, namespaceContext);
+        XPathExpression compiled;
+        synchronized (expressions) {
+            compiled = expressions.get(key);
+        }
+        if (compiled != null) {
+            hits.incrementAndGet();
+            return compiled;
+        }
+        misses.incrementAndGet();
+        synchronized (pathFactory) {
+            XPath path = pathFactory.newXPath();
+            path.setNamespaceContext(namespaceContext);
+            compiled = path.compile(expression);
+        }
+        synchronized (expressions) {
+            expressions.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    public XPathExecutable compileExecutable(String expression, final NamespaceContext namespaceContext) throws SaxonApiException {
+        Key key = new Key(expression, namespaceContext);
+        XPathExecutable compiled;
+        synchronized (executables) {
+            compiled = executables.get(key);
+        }
+        if (compiled != null) {
+            hits.incrementAndGet();
+            return compiled;
+        }
+        misses.incrementAndGet();
+        XPathCompiler compiler = XdmInput.processor().newXPathCompiler();
+        ((IndependentContext) compiler.getUnderlyingStaticContext()).setNamespaceResolver(new NamespaceResolver() {
+            @Override
+            public String getURIForPrefix(String prefix, boolean useDefault) {
+                return prefix.isEmpty() ? "" : namespaceContext.getNamespaceURI(prefix);
+            }
+
+            @Override
+            public Iterator<String> iteratePrefixes() {
+                return Collections.<String>emptyList().iterator();
+            }
+        });
+        compiled = compiler.compile(expression);
+        synchronized (executables) {
+            executables.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getFastPaths() {
+        return fastPaths.get();
+    }
+
+    public int size() {
+        int size;
+        synchronized (expressions) {
+            size = expressions.size();
+        }
+        synchronized (executables) {
+            size += executables.size();
+        }
+        return size;
+    }
+
+    public String toString() {
+        return String.format("XPathCache(size=%d, hits=%d, misses=%d, fastPaths=%d)", size(), getHits(), getMisses(), getFastPaths());
+    }
+
+    private static class LeastRecentlyUsed<V> extends LinkedHashMap<Key, V> {
+        private static final long serialVersionUID = 1L;
+        private final int maximumSize;
+
+        private LeastRecentlyUsed(int maximumSize) {
+            super(64, 0.75f, true);
+            this.maximumSize = maximumSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+            return size() > maximumSize;
+        }
+    }
+
+    private static class Key {
+        final String expression;
+        final NamespaceContext namespaceContext;
+
+        private Key(String expression, NamespaceContext namespaceContext) {
+            this.expression = expression;
+            this.namespaceContext = namespaceContext;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return expression.equals(key.expression) && namespaceContext == key.namespaceContext;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * expression.hashCode() + System.identityHashCode(namespaceContext);
+        }
+    }
+}
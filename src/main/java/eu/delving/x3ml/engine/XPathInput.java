@@ -20,16 +20,15 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import javax.xml.namespace.NamespaceContext;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 import static eu.delving.x3ml.X3MLEngine.exception;
 import static eu.delving.x3ml.engine.X3ML.GeneratorElement;
@@ -43,36 +42,33 @@ import static eu.delving.x3ml.engine.X3ML.SourceType;
  *
  * @author Gerald de Jong <gerald@delving.eu>
  */
-public class XPathInput {
+public class XPathInput implements SourceInput {
 
-    private final XPathFactory pathFactory = net.sf.saxon.xpath.XPathFactoryImpl.newInstance();
-    private final NamespaceContext namespaceContext;
+    protected final XPathCache xpathCache;
+    protected final NamespaceContext namespaceContext;
     private final String languageFromMapping;
     private final Node rootNode;
-    private Map<String, Map<String, List<Node>>> rangeMapCache = new TreeMap<String, Map<String, List<Node>>>();
+    private Map<JoinIndex.Key, JoinIndex> joinIndexes = new LinkedHashMap<JoinIndex.Key, JoinIndex>();
+    private Map<String, IntermediateIndex> intermediateIndexes = new HashMap<String, IntermediateIndex>();
+    private Map<Node, String> languageCache = new HashMap<Node, String>();
 
-    public XPathInput(Node rootNode, NamespaceContext namespaceContext, String languageFromMapping) {
+    public XPathInput(Node rootNode, XPathCache xpathCache, NamespaceContext namespaceContext, String languageFromMapping) {
         this.rootNode = rootNode;
+        this.xpathCache = xpathCache;
         this.namespaceContext = namespaceContext;
         this.languageFromMapping = languageFromMapping;
     }
 
-    public X3ML.ArgValue evaluateArgument(Node node, int index, GeneratorElement generatorElement, String argName, SourceType defaultType) {
-        X3ML.GeneratorArg foundArg = null;
-        SourceType type = defaultType;
-        if (generatorElement.args != null) {
-            for (X3ML.GeneratorArg arg : generatorElement.args) {
-                if (arg.name == null) {
-//                    throw exception("Argument needs a name in generator "+generatorElement.name);
-                    arg.name = "text";
-                }
-                if (arg.name.equals(argName)) {
-                    foundArg = arg;
-                    type = sourceType(arg.type, defaultType);
-                }
-            }
+    @Override
+    public Node rootNode() {
+        return rootNode;
+    }
 
-        }
+    @Override
+    public X3ML.ArgValue evaluateArgument(Node node, int index, GeneratorElement generatorElement, String argName, SourceType defaultType) {
+        X3ML.ArgBinding binding = generatorElement.getBinding(argName);
+        X3ML.GeneratorArg foundArg = binding == null ? null : binding.arg;
+        SourceType type = binding == null ? defaultType : binding.getType(defaultType);
         X3ML.ArgValue value = null;
         switch (type) {
 
@@ -80,14 +76,14 @@ public class XPathInput {
                 if (foundArg == null) {
                     return null;
                 }
-                String lang = getLanguageFromSource(node);
+                String lang = getLanguage(node);
                 if (lang == null) {
                     lang = languageFromMapping;
                 }
                 if (!foundArg.value.isEmpty()) {
                     value = argVal(valueAt(node, foundArg.value), lang);
                     if (value.string.isEmpty()) {
-                        throw exception("Empty result for arg " + foundArg.name + " at node " + node.getNodeName() + " in generator\n" + generatorElement);
+                        throw exception("Empty result for arg " + argName + " at node " + node.getNodeName() + " in generator\n" + generatorElement);
                     }
                 }
                 break;
@@ -95,7 +91,7 @@ public class XPathInput {
                 if (foundArg == null) {
                     return null;
                 }
-                value = argVal(foundArg.value, languageFromMapping);
+                value = binding.getConstantValue(languageFromMapping);
                 break;
             case position:
                 value = argVal(String.valueOf(index), null);
@@ -106,23 +102,56 @@ public class XPathInput {
         return value;
     }
 
+    @Override
+    public Node firstNode(Node node, String expression) {
+        if (expression == null || expression.length() == 0) {
+            return node;
+        }
+        return evaluateFirst(node, expression);
+    }
+
+    @Override
     public String valueAt(Node node, String expression) {
-        List<Node> nodes = nodeList(node, expression);
-        if (nodes.isEmpty()) {
+        Node first = firstNode(node, expression);
+        if (first == null) {
             return "";
         }
-        String value = nodes.get(0).getNodeValue();
+        String value = textValue(first);
         if (value == null) {
             return "";
         }
         return value.trim();
     }
 
+    /**
+     * The value of a node as xpath sees it. The DOM may split text into
+     * adjacent text and CDATA nodes, which xpath joins into one text node
+     * represented by the first of them.
+     */
+
+    public static String textValue(Node node) {
+        String value = node.getNodeValue();
+        if (!isText(node) || node.getNextSibling() == null || !isText(node.getNextSibling())) {
+            return value;
+        }
+        StringBuilder out = new StringBuilder(value);
+        for (Node next = node.getNextSibling(); next != null && isText(next); next = next.getNextSibling()) {
+            out.append(next.getNodeValue());
+        }
+        return out.toString();
+    }
+
+    private static boolean isText(Node node) {
+        return node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE;
+    }
+
+    @Override
     public int countNodes(Node node, String expression) {
         List<Node> nodes = nodeList(node, expression);
         return nodes.size();
     }
 
+    @Override
     public List<Node> nodeList(Node node, X3ML.Source source) {
         if (source != null) {
             return nodeList(node, source.expression);
@@ -133,6 +162,7 @@ public class XPathInput {
         }
     }
 
+    @Override
     public List<Node> nodeList(Node context, String expression) {
 
         if (expression == null || expression.length() == 0) {
@@ -140,8 +170,20 @@ public class XPathInput {
             list.add(context);
             return list;
         }
+        return evaluate(context, expression);
+    }
+
+    protected List<Node> evaluate(Node context, String expression) {
+        SimplePath simplePath = xpathCache.simplePath(expression, namespaceContext);
+        if (simplePath != null) {
+            List<Node> list = simplePath.evaluate(context);
+            if (list != null) {
+                xpathCache.countFastPath();
+                return list;
+            }
+        }
         try {
-            XPathExpression xe = xpath().compile(expression);
+            XPathExpression xe = xpathCache.compile(expression, namespaceContext);
 
             NodeList nodeList = (NodeList) xe.evaluate(context, XPathConstants.NODESET);
             int nodesReturned = nodeList.getLength();
@@ -155,89 +197,89 @@ public class XPathInput {
         }
     }
 
-    public List<Node> rootNodeList(
-            String domainExpression,
-            String pathExpression,
-            String domainValue,
-            String rangeExpression,
-            String rangeKeyPath
-    ) {
+    /**
+     * Only the first node in document order, so the xpath engine can stop
+     * as soon as it has found one.
+     */
+
+    protected Node evaluateFirst(Node context, String expression) {
+        SimplePath simplePath = xpathCache.simplePath(expression, namespaceContext);
+        if (simplePath != null) {
+            List<Node> list = simplePath.evaluate(context);
+            if (list != null) {
+                xpathCache.countFastPath();
+                return list.isEmpty() ? null : list.get(0);
+            }
+        }
+        try {
+            return (Node) xpathCache.compile(expression, namespaceContext).evaluate(context, XPathConstants.NODE);
+        } catch (XPathExpressionException e) {
+            throw new RuntimeException("XPath Problem: " + expression, e);
+        }
+    }
+
+    @Override
+    public List<Node> rootNodeList(String rangeExpression, String rangeKeyPath, String keyValue) {
         if (rangeExpression == null || rangeExpression.length() == 0) {
             throw exception("Range expression missing");
         }
-        Map<String, List<Node>> rangeMap = getRangeMap(
-                rootNode,
-                domainExpression,
-                pathExpression,
-                rangeExpression,
-                rangeKeyPath
-        );
-
-        return rangeMap.get(domainValue);
-    }
-
-    private Map<String, List<Node>> getRangeMap(
-            Node context,
-            String domainExpression,
-            String pathExpression,
-            String rangeExpression,
-            String rangeKeyPath
-    ) {
-        String mapName = domainExpression + "|" + pathExpression + "|" + rangeExpression;
-
-        Map<String, List<Node>> map = rangeMapCache.get(mapName);
-        if (map == null) {
-            map = new HashMap<String, List<Node>>();
-            rangeMapCache.put(mapName, map);
-            for (Node node : nodeList(context, rangeExpression)) {
-                String key = valueAt(node, rangeKeyPath);
-                List<Node> value = map.get(key);
-
-                if (value == null) {
-                    value = new ArrayList<Node>();
-                    map.put(key, value);
-                }
-                value.add(node);
-
-            }
-//            Logger log = Logger.getLogger("getRangeMap");
-//            log.info("Built Map! " + mapName);
-//            for (Map.Entry<String, List<Node>> entry : map.entrySet()) {
-//                for (Node node : entry.getValue()) {
-//                    log.info("\n" + entry.getKey() + ":=" + $(node).content());
-//                }
-//            }
-        }
-        return map;
-    }
-
-    private static String getLanguageFromSource(Node node) {
-        Node walkNode = node;
-        while (walkNode != null) {
-            NamedNodeMap attributes = walkNode.getAttributes();
-            if (attributes != null) {
-                Node lang = attributes.getNamedItemNS("http://www.w3.org/XML/1998/namespace", "lang");
-                if (lang != null) {
-                    return lang.getNodeValue();
-                }
-            }
-            walkNode = walkNode.getParentNode();
+        JoinIndex.Key key = new JoinIndex.Key(rangeExpression, rangeKeyPath);
+        JoinIndex joinIndex = joinIndexes.get(key);
+        if (joinIndex == null) {
+            joinIndex = JoinIndex.build(this, key);
+            joinIndexes.put(key, joinIndex);
         }
-        return null;
+        return joinIndex.lookup(keyValue);
     }
 
-    private SourceType sourceType(String value, SourceType defaultType) {
-        if (value == null) {
-            return defaultType;
-        } else {
-            return SourceType.valueOf(value);
+    @Override
+    public Collection<JoinIndex> getJoinIndexes() {
+        return joinIndexes.values();
+    }
+
+    @Override
+    public IntermediateIndex intermediateIndex(String nodeExpression, String firstPath, String secondPath) {
+        String key = nodeExpression + "|" + firstPath + "|" + secondPath;
+        IntermediateIndex index = intermediateIndexes.get(key);
+        if (index == null) {
+            index = IntermediateIndex.build(this, nodeExpression, firstPath, secondPath);
+            intermediateIndexes.put(key, index);
         }
+        return index;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return false; // a DOM may not even be read from several threads
     }
 
-    private XPath xpath() {
-        XPath path = pathFactory.newXPath();
-        path.setNamespaceContext(namespaceContext);
-        return path;
+    /**
+     * The inherited xml:lang of a node. Every node is inspected only once,
+     * after which its language is remembered for all of its descendants and
+     * for every generator argument evaluated at it.
+     */
+
+    @Override
+    public String getLanguage(Node node) {
+        if (node == null) {
+            return null;
+        }
+        if (languageCache.containsKey(node)) {
+            return languageCache.get(node);
+        }
+        String language = null;
+        NamedNodeMap attributes = node.getAttributes();
+        if (attributes != null) {
+            Node lang = attributes.getNamedItemNS("http://www.w3.org/XML/1998/namespace", "lang");
+            if (lang != null) {
+                language = lang.getNodeValue();
+            }
+        }
+        if (language == null) {
+            language = getLanguage(node.getParentNode());
+        }
+        languageCache.put(node, language);
+        return language;
     }
 
 }
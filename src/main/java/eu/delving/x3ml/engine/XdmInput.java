@@ -0,0 +1,140 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml.engine;
+
+import net.sf.saxon.dom.NodeOverNodeInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static eu.delving.x3ml.X3MLEngine.exception;
+
+/**
+ * The source data held in a Saxon TinyTree instead of a DOM tree, which is
+ * far more compact. Expressions are evaluated natively through s9api so
+ * Saxon no longer has to wrap a DOM for every evaluation.
+ * <p/>
+ * The rest of the engine sees the tree through read-only DOM views of the
+ * underlying nodes.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+public class XdmInput extends XPathInput {
+
+    private static final Processor PROCESSOR = new Processor(false);
+
+    public XdmInput(Element rootNode, XPathCache xpathCache, NamespaceContext namespaceContext, String languageFromMapping) {
+        super(rootNode, xpathCache, namespaceContext, languageFromMapping);
+    }
+
+    public static Processor processor() {
+        return PROCESSOR;
+    }
+
+    public static XdmNode parse(InputStream inputStream) {
+        return build(new StreamSource(inputStream));
+    }
+
+    public static XdmNode build(Source source) {
+        try {
+            return PROCESSOR.newDocumentBuilder().build(source);
+        }
+        catch (SaxonApiException e) {
+            throw exception("Unable to build tree", e);
+        }
+    }
+
+    public static Element documentElement(XdmNode node) {
+        if (node.getNodeKind() == XdmNodeKind.DOCUMENT) {
+            XdmSequenceIterator children = node.axisIterator(Axis.CHILD);
+            while (children.hasNext()) {
+                XdmNode child = (XdmNode) children.next();
+                if (child.getNodeKind() == XdmNodeKind.ELEMENT) {
+                    return (Element) NodeOverNodeInfo.wrap(child.getUnderlyingNode());
+                }
+            }
+            throw exception("Document has no element");
+        }
+        if (node.getNodeKind() != XdmNodeKind.ELEMENT) {
+            throw exception("Source root must be a document or an element");
+        }
+        return (Element) NodeOverNodeInfo.wrap(node.getUnderlyingNode());
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    protected List<Node> evaluate(Node context, String expression) {
+        if (!(context instanceof NodeOverNodeInfo)) {
+            throw exception("Node is not from a tree: " + context);
+        }
+        try {
+            XPathSelector selector = xpathCache.compileExecutable(expression, namespaceContext).load();
+            selector.setContextItem(new XdmNode(((NodeOverNodeInfo) context).getUnderlyingNodeInfo()));
+            List<Node> list = new ArrayList<Node>();
+            for (XdmItem item : selector) {
+                if (item.isAtomicValue()) {
+                    throw exception("XPath must produce nodes: " + expression);
+                }
+                list.add(NodeOverNodeInfo.wrap((NodeInfo) item.getUnderlyingValue()));
+            }
+            return list;
+        }
+        catch (SaxonApiException e) {
+            throw new RuntimeException("XPath Problem: " + expression, e);
+        }
+    }
+
+    @Override
+    protected Node evaluateFirst(Node context, String expression) {
+        if (!(context instanceof NodeOverNodeInfo)) {
+            throw exception("Node is not from a tree: " + context);
+        }
+        try {
+            XPathSelector selector = xpathCache.compileExecutable(expression, namespaceContext).load();
+            selector.setContextItem(new XdmNode(((NodeOverNodeInfo) context).getUnderlyingNodeInfo()));
+            XdmItem item = selector.evaluateSingle();
+            if (item == null) {
+                return null;
+            }
+            if (item.isAtomicValue()) {
+                throw exception("XPath must produce nodes: " + expression);
+            }
+            return NodeOverNodeInfo.wrap((NodeInfo) item.getUnderlyingValue());
+        }
+        catch (SaxonApiException e) {
+            throw new RuntimeException("XPath Problem: " + expression, e);
+        }
+    }
+}
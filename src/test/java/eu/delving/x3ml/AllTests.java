@@ -64,7 +64,12 @@ import static org.junit.Assert.assertTrue;
         TestBM.class,
         TestRijks.class,
         TestGML.class,
-        TestDoubleJoin.class
+        TestDoubleJoin.class,
+        TestSourceBackends.class,
+        TestSimplePath.class,
+        TestJoinIndex.class,
+        TestJoinFiles.class,
+        TestValueScopes.class
 })
 public class AllTests {
     public static final String MISSING = "!expect :     ";
@@ -0,0 +1,87 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml;
+
+import com.sun.management.ThreadMXBean;
+import eu.delving.x3ml.engine.Generator;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.w3c.dom.Element;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import static eu.delving.x3ml.AllTests.documentBuilderFactory;
+
+/**
+ * Bytes allocated per generated entity, measured with the thread's
+ * allocation counter around whole executions. Each record gives an object
+ * and an appellation, each with a UUID instance, a Literal label and a
+ * Constant label. There is no JMH in this build. Run with the test
+ * classpath on a HotSpot JVM.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+
+public class AllocationBenchmark {
+    private static final String MAPPING = "" +
+            "<x3ml version=\"1.0\" source_type=\"xpath\">" +
+            "<namespaces><namespace prefix=\"crm\" uri=\"http://www.cidoc-crm.org/cidoc-crm/\"/></namespaces>" +
+            "<mappings><mapping>" +
+            "<domain><source_node>//REC</source_node><target_node><entity>" +
+            "<type>crm:E22_Man-Made_Object</type><instance_generator name=\"UUID\"/>" +
+            "<label_generator name=\"Literal\"><arg name=\"text\">ID/text()</arg></label_generator>" +
+            "<label_generator name=\"Constant\"><arg name=\"text\">object</arg></label_generator>" +
+            "</entity></target_node></domain>" +
+            "<link><path><source_relation><relation>NAME</relation></source_relation>" +
+            "<target_relation><relationship>crm:P1_is_identified_by</relationship></target_relation></path>" +
+            "<range><source_node>NAME</source_node><target_node><entity>" +
+            "<type>crm:E41_Appellation</type><instance_generator name=\"UUID\"/>" +
+            "<label_generator name=\"Literal\"><arg name=\"text\">text()</arg></label_generator>" +
+            "<label_generator name=\"Constant\"><arg name=\"text\">name</arg></label_generator>" +
+            "</entity></target_node></range></link>" +
+            "</mapping></mappings></x3ml>";
+    private static final int RECORDS = 20000;
+    private static final int WARM_UP = 10;
+    private static final int MEASURED = 10;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new NullOutputStream())); // the mapping and its generators may print
+        StringBuilder xml = new StringBuilder("<RECS>");
+        for (int walk = 0; walk < RECORDS; walk++) {
+            xml.append("<REC><ID>").append(walk).append("</ID><NAME>name ").append(walk).append("</NAME></REC>");
+        }
+        xml.append("</RECS>");
+        Element record = documentBuilderFactory().newDocumentBuilder().parse(IOUtils.toInputStream(xml.toString(), "UTF-8")).getDocumentElement();
+        X3MLEngine engine = X3MLEngine.load(IOUtils.toInputStream(MAPPING, "UTF-8"));
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long bytes = 0, nanos = 0;
+        for (int run = 0; run < WARM_UP + MEASURED; run++) {
+            Generator policy = X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(4));
+            long before = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            engine.execute(record, policy);
+            if (run >= WARM_UP) {
+                nanos += System.nanoTime() - start;
+                bytes += threads.getThreadAllocatedBytes(thread) - before;
+            }
+        }
+        long entities = 2L * RECORDS * MEASURED;
+        out.printf("%d bytes per generated entity, %d ms per execution%n", bytes / entities, nanos / MEASURED / 1000000);
+    }
+}
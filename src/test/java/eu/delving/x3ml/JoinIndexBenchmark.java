@@ -0,0 +1,58 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml;
+
+import eu.delving.x3ml.engine.JoinIndex;
+import eu.delving.x3ml.engine.SourceBackend;
+import eu.delving.x3ml.engine.SourceInput;
+import eu.delving.x3ml.engine.XPathCache;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+
+import static eu.delving.x3ml.AllTests.documentBuilderFactory;
+
+/**
+ * Build the join index of a synthetic range of 200000 items with 50000
+ * distinct keys on each source backend, three times over so that the
+ * later rounds are warm. Each line is the index's own report of build
+ * time, cardinality and memory. Run with the test classpath.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+
+public class JoinIndexBenchmark {
+    private static final int ITEMS = 200000;
+    private static final int KEYS = 50000;
+
+    public static void main(String[] args) throws Exception {
+        StringBuilder xml = new StringBuilder("<items>");
+        for (int walk = 0; walk < ITEMS; walk++) {
+            xml.append("<item><ID>").append(walk % KEYS).append("</ID></item>");
+        }
+        xml.append("</items>");
+        Element root = documentBuilderFactory().newDocumentBuilder().parse(
+                new ByteArrayInputStream(xml.toString().getBytes("UTF-8"))
+        ).getDocumentElement();
+        JoinIndex.Key key = new JoinIndex.Key("//item", "ID/text()");
+        for (int round = 1; round <= 3; round++) {
+            for (SourceBackend backend : SourceBackend.values()) {
+                SourceInput input = backend.create(root, new XPathCache(), null, null);
+                System.out.println("round " + round + " " + backend + " " + JoinIndex.build(input, key));
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml;
+
+import eu.delving.x3ml.engine.MergeJoin;
+import eu.delving.x3ml.engine.SourceBackend;
+import eu.delving.x3ml.engine.SourceInput;
+import eu.delving.x3ml.engine.XPathCache;
+import eu.delving.x3ml.engine.XdmInput;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * A million FIND_SPOT range records sorted by FS_ID, looked up a million
+ * times in ascending order either through the hash join index or through
+ * a merge join. Run each mode in its own JVM so that the heap numbers do
+ * not mix, for instance with -Xmx3g and the argument "hash" or "merge".
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+
+public class MergeJoinBenchmark {
+    private static final int RECORDS = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1 || !(args[0].equals("hash") || args[0].equals("merge"))) {
+            System.err.println("usage: MergeJoinBenchmark hash|merge");
+            System.exit(1);
+        }
+        boolean merge = args[0].equals("merge");
+        SourceInput input = SourceBackend.TINY_TREE.create(spots(), new XPathCache(), null, null);
+        input.nodeList(input.rootNode(), "//FIND_SPOT");
+        long before = usedHeap();
+        long start = System.nanoTime();
+        long found = 0;
+        MergeJoin mergeJoin = merge ? new MergeJoin(input, "//FIND_SPOT", "FS_ID/text()") : null;
+        for (int walk = 0; walk < RECORDS; walk++) {
+            String key = String.valueOf(walk / 2 * 2 + 1); // every odd key twice, the last one past the end
+            List<Node> nodes = merge ? mergeJoin.lookup(key) : input.rootNodeList("//FIND_SPOT", "FS_ID/text()", key);
+            found += nodes.size();
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        long after = usedHeap();
+        System.out.printf("%s: %d lookups, %d found, %dms, heap before %dMB after %dMB, %s%n",
+                args[0], RECORDS, found, millis, before >> 20, after >> 20, merge ? mergeJoin : input.getJoinIndexes());
+    }
+
+    private static Element spots() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer out = new OutputStreamWriter(bytes, "UTF-8");
+        out.write("<spots>");
+        for (int walk = 0; walk < RECORDS; walk++) {
+            out.write("<FIND_SPOT><FS_ID>" + walk + "</FS_ID><FS_NAME>Spot " + walk + "</FS_NAME></FIND_SPOT>");
+        }
+        out.write("</spots>");
+        out.close();
+        return XdmInput.documentElement(XdmInput.parse(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int walk = 0; walk < 4; walk++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,125 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+
+import static eu.delving.x3ml.AllTests.resource;
+
+/**
+ * Loading time with and without a plan, for a synthetic mapping of 400
+ * mappings with 10 links each. First the engine is loaded in this JVM, and
+ * then the command line is started in a new JVM and timed until the first
+ * triple appears on its output. Run with the test classpath.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+
+public class PlanCacheBenchmark {
+    private static final int MAPPINGS = 400;
+    private static final int LINKS = 10;
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(FileUtils.getTempDirectory(), "x3ml-plan-benchmark");
+        FileUtils.forceMkdir(dir);
+        File x3ml = new File(dir, "big.x3ml");
+        File policy = new File(dir, "policy.xml");
+        File xml = new File(dir, "big.xml");
+        FileUtils.writeStringToFile(x3ml, mapping(), "UTF-8");
+        FileUtils.writeByteArrayToFile(policy, IOUtils.toByteArray(resource("/bm/BM20-gen-policy.xml")));
+        FileUtils.writeStringToFile(xml, "<items><M0><R0>a</R0><R1>b</R1></M0></items>", "UTF-8");
+        deletePlans(x3ml, policy);
+        X3MLEngine.loadWithPlan(x3ml);
+        long bestParsed = Long.MAX_VALUE, bestPlanned = Long.MAX_VALUE;
+        for (int walk = 0; walk < 10; walk++) {
+            long start = System.nanoTime();
+            FileInputStream inputStream = new FileInputStream(x3ml);
+            X3MLEngine.load(inputStream);
+            inputStream.close();
+            long parsed = System.nanoTime();
+            X3MLEngine.loadWithPlan(x3ml);
+            long planned = System.nanoTime();
+            bestParsed = Math.min(bestParsed, parsed - start);
+            bestPlanned = Math.min(bestPlanned, planned - parsed);
+        }
+        System.out.printf("source %d KB, plan %d KB%n", x3ml.length() / 1024, new File(dir, "big.x3ml.plan").length() / 1024);
+        System.out.printf("in-process load, best of ten: parsed %d ms, from plan %d ms%n", bestParsed / 1000000, bestPlanned / 1000000);
+        long withoutPlan = Long.MAX_VALUE, writingPlan = Long.MAX_VALUE, planPresent = Long.MAX_VALUE;
+        for (int walk = 0; walk < 5; walk++) {
+            deletePlans(x3ml, policy);
+            withoutPlan = Math.min(withoutPlan, firstTriple(x3ml, policy, xml, false));
+            writingPlan = Math.min(writingPlan, firstTriple(x3ml, policy, xml, true));
+            planPresent = Math.min(planPresent, firstTriple(x3ml, policy, xml, true));
+        }
+        System.out.printf("command line start to first triple, best of five: without -plan %d ms, -plan writing the plan %d ms, -plan with the plan present %d ms%n",
+                withoutPlan, writingPlan, planPresent);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static long firstTriple(File x3ml, File policy, File xml, boolean plan) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(
+                java, "-cp", System.getProperty("java.class.path"), X3MLCommandLine.class.getName(),
+                "-xml", xml.getPath(), "-x3ml", x3ml.getPath(), "-policy", policy.getPath(),
+                "-format", "application/n-triples"
+        ).redirectErrorStream(true);
+        if (plan) {
+            builder.command().add("-plan");
+        }
+        long start = System.nanoTime();
+        Process process = builder.start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        String line = reader.readLine();
+        long millis = (System.nanoTime() - start) / 1000000;
+        IOUtils.toString(reader);
+        if (process.waitFor() != 0 || line == null || !line.startsWith("<")) {
+            throw new IllegalStateException("The command line gave no triple: " + line);
+        }
+        return millis;
+    }
+
+    private static void deletePlans(File... files) {
+        for (File file : files) {
+            FileUtils.deleteQuietly(new File(file.getParentFile(), file.getName() + ".plan"));
+        }
+    }
+
+    private static String mapping() {
+        StringBuilder out = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.append("<x3ml version=\"1.0\" source_type=\"xpath\"><namespaces>");
+        out.append("<namespace prefix=\"crm\" uri=\"http://www.cidoc-crm.org/cidoc-crm/\"/></namespaces><mappings>");
+        for (int mapping = 0; mapping < MAPPINGS; mapping++) {
+            out.append("<mapping><domain><source_node>//M").append(mapping).append("</source_node>");
+            out.append("<target_node><entity><type>crm:E40_Legal_Body</type><instance_generator name=\"UUID\"/></entity></target_node></domain>");
+            for (int link = 0; link < LINKS; link++) {
+                out.append("<link><path><source_relation><relation>R").append(link).append("</relation></source_relation>");
+                out.append("<target_relation><relationship>crm:P1_is_identified_by</relationship></target_relation></path>");
+                out.append("<range><source_node>R").append(link).append("</source_node><target_node><if><exists>text()</exists></if>");
+                out.append("<entity><type>crm:E41_Appellation</type><instance_generator name=\"UUID\"/>");
+                out.append("<label_generator name=\"SimpleLabel\"><arg name=\"label\">text()</arg></label_generator>");
+                out.append("</entity></target_node></range></link>");
+            }
+            out.append("</mapping>");
+        }
+        return out.append("</mappings></x3ml>").toString();
+    }
+}
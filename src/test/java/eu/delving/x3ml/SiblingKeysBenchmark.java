@@ -0,0 +1,85 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml;
+
+import eu.delving.x3ml.engine.GeneratorContext;
+import org.apache.commons.io.output.NullOutputStream;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+
+import static eu.delving.x3ml.AllTests.documentBuilderFactory;
+import static eu.delving.x3ml.AllTests.resource;
+
+/**
+ * A record of thousands of sibling COIN elements mapped with coin_a/01,
+ * which generates two values per coin. Next to the mapping throughput it
+ * shows what building the xpath string of every node would cost, which is
+ * what each generated value used to be keyed by. Run with the test
+ * classpath; the first round warms up.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+
+public class SiblingKeysBenchmark {
+    private static final int[] SIBLINGS = {1000, 5000, 20000};
+    private static final long NANOS_PER_CASE = 4000000000L;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new NullOutputStream())); // the mapping and its generators may print
+        X3MLEngine engine = X3MLEngine.load(resource("/coin_a/01-coin-simple.x3ml"));
+        for (int round = 1; round <= 2; round++) {
+            for (int siblings : SIBLINGS) {
+                byte[] xml = record(siblings);
+                int runs = 0;
+                long start = System.nanoTime();
+                while (System.nanoTime() - start < NANOS_PER_CASE || runs < 2) {
+                    engine.execute(parse(xml), X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(0)));
+                    runs++;
+                }
+                double millis = (System.nanoTime() - start) / 1e6 / runs;
+                Element root = parse(xml);
+                start = System.nanoTime();
+                int paths = 0;
+                long chars = 0;
+                for (Node coin = root.getFirstChild(); coin != null; coin = coin.getNextSibling()) {
+                    chars += GeneratorContext.extractXPath(coin).length();
+                    chars += GeneratorContext.extractXPath(coin.getFirstChild()).length();
+                    paths += 2;
+                }
+                double pathMillis = (System.nanoTime() - start) / 1e6;
+                out.printf("round %d %6d siblings %9.1f ms/record %9.0f siblings/s, %d xpath strings (%d chars) %9.1f ms%n",
+                        round, siblings, millis, siblings * 1000 / millis, paths, chars, pathMillis);
+            }
+        }
+    }
+
+    private static byte[] record(int siblings) throws Exception {
+        StringBuilder xml = new StringBuilder("<dataroot>");
+        for (int walk = 0; walk < siblings; walk++) {
+            xml.append("<COIN><ID>").append(walk).append("</ID></COIN>");
+        }
+        xml.append("</dataroot>");
+        return xml.toString().getBytes("UTF-8");
+    }
+
+    private static Element parse(byte[] xml) throws Exception {
+        return documentBuilderFactory().newDocumentBuilder().parse(new ByteArrayInputStream(xml)).getDocumentElement();
+    }
+}
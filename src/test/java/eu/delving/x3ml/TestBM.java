@@ -15,8 +15,10 @@
 //===========================================================================
 package eu.delving.x3ml;
 
+import eu.delving.x3ml.engine.ModelOutput;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.List;
 import java.io.ByteArrayInputStream;
 
@@ -25,6 +27,8 @@ import org.apache.commons.io.IOUtils;
 import java.io.IOException;
 
 import static eu.delving.x3ml.AllTests.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.apache.commons.lang3.StringUtils;
@@ -73,4 +77,40 @@ public class TestBM {
         //assertTrue(expected.containsAll(mapped));
         assertTrue(unknown == 0);
     }
+
+    @Test
+    public void testBM20Memo() throws IOException {
+        String[] plain = engine("/bm/BM20.x3ml").execute(document("/bm/BM20.xml"),
+                policy("/bm/BM20-gen-policy.xml")).toStringArray();
+        X3MLEngine engine = engine("/bm/BM20.x3ml");
+        engine.getExpressionMemo().enableAll();
+        String[] memo = engine.execute(document("/bm/BM20.xml"),
+                policy("/bm/BM20-gen-policy.xml")).toStringArray();
+        Arrays.sort(plain);
+        Arrays.sort(memo);
+        assertArrayEquals(plain, memo);
+        assertEquals(engine.getExpressionMemo().toString(), 39, engine.getExpressionMemo().getHits());
+    }
+
+    @Test
+    public void testBM20LinkOnce() throws IOException {
+        X3MLEngine engine = engine("/bm/BM20.x3ml");
+        ModelOutput output = (ModelOutput) engine.execute(document("/bm/BM20.xml"),
+                policy("/bm/BM20-gen-policy.xml"));
+        String[] linked = output.toStringArray();
+        Arrays.sort(linked);
+        // written before linking only once, when every repeat was added again
+        String[] expected = IOUtils.toString(resource("/bm/BM20-sorted.nt"), "UTF-8").split("\n");
+        assertArrayEquals(expected, linked);
+        assertEquals("emitted", 666, output.getEmitted());
+        assertEquals("suppressed", 347, output.getSuppressed());
+    }
+
+    @Test
+    public void testBM20LazyLabels() throws IOException {
+        X3MLEngine engine = engine("/bm/BM20.x3ml");
+        ModelOutput output = (ModelOutput) engine.execute(document("/bm/BM20.xml"),
+                policy("/bm/BM20-gen-policy.xml"));
+        assertEquals(59, output.getAvoidedGeneratorCalls());
+    }
 }
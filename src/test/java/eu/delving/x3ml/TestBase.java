@@ -15,17 +15,26 @@
 //===========================================================================
 package eu.delving.x3ml;
 
+import eu.delving.x3ml.engine.PlanCache;
+import eu.delving.x3ml.engine.X3ML;
+import eu.delving.x3ml.engine.X3MLReader;
 import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static eu.delving.x3ml.AllTests.*;
+import static eu.delving.x3ml.engine.X3ML.Helper.generatorStream;
+import static eu.delving.x3ml.engine.X3ML.Helper.x3mlStream;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -66,6 +75,92 @@ public class TestBase {
         Assert.assertEquals("Mismatch", StringUtils.join(original, "\n"), StringUtils.join(serialized, "\n"));
     }
 
+    @Test
+    public void testReaderMatchesXStream() throws Exception {
+        List<File> mappings = new ArrayList<File>();
+        List<File> policies = new ArrayList<File>();
+        File root = new File(getClass().getResource("/").toURI());
+        for (File file : FileUtils.listFiles(root, new String[]{"x3ml", "xml"}, true)) {
+            if (file.getName().endsWith(".x3ml")) {
+                mappings.add(file);
+            }
+            else if (FileUtils.readFileToString(file, "UTF-8").contains("<generator_policy")) {
+                policies.add(file);
+            }
+        }
+        assertTrue(mappings.size() > 30 && policies.size() > 5);
+        int rejected = 0;
+        for (File mapping : mappings) {
+            String expected;
+            try {
+                expected = x3mlStream().toXML(x3mlStream().fromXML(FileUtils.openInputStream(mapping)));
+            }
+            catch (Exception e) {
+                expected = null;
+            }
+            try {
+                Assert.assertEquals(mapping.getPath(), expected, x3mlStream().toXML(X3MLReader.readX3ML(FileUtils.openInputStream(mapping))));
+            }
+            catch (X3MLEngine.X3MLException e) {
+                Assert.assertNull(mapping.getPath() + " rejected: " + e.getMessage(), expected);
+                rejected++;
+            }
+        }
+        assertTrue("only the legacy originals are unreadable", rejected < 10);
+        for (File policy : policies) {
+            String expected = generatorStream().toXML(generatorStream().fromXML(FileUtils.openInputStream(policy)));
+            Assert.assertEquals(policy.getPath(), expected, generatorStream().toXML(X3MLReader.readPolicy(FileUtils.openInputStream(policy))));
+        }
+    }
+
+    @Test
+    public void testPlanCache() throws IOException {
+        File mapping = File.createTempFile("base", ".x3ml");
+        File policy = File.createTempFile("base-gen-policy", ".xml");
+        File mappingPlan = PlanCache.planFile(mapping);
+        File policyPlan = PlanCache.planFile(policy);
+        for (File file : new File[]{mapping, policy, mappingPlan, policyPlan}) {
+            file.deleteOnExit();
+        }
+        FileUtils.copyURLToFile(getClass().getResource("/base/base.x3ml"), mapping);
+        FileUtils.copyURLToFile(getClass().getResource("/base/base-gen-policy.xml"), policy);
+        String expected = engine("/base/base.x3ml").toString();
+        String[] expectedResult = AllTests.xmlToNTriples("/base/base-rdf.xml");
+        for (int walk = 0; walk < 2; walk++) { // parsed, then from the plan
+            X3MLEngine engine = X3MLEngine.loadWithPlan(mapping);
+            Assert.assertEquals(expected, engine.toString());
+            X3MLEngine.Output output = engine.execute(document("/base/base.xml"),
+                    X3MLGeneratorPolicy.loadWithPlan(policy, X3MLGeneratorPolicy.createUUIDSource(1)));
+            List<String> diff = compareNTriples(expectedResult, output.toStringArray());
+            assertTrue("\n" + StringUtils.join(diff, "\n") + "\n", errorFree(diff));
+            assertTrue(mappingPlan.isFile() && policyPlan.isFile());
+        }
+        X3ML.RootElement fromPlan = PlanCache.load(mapping, X3ML.RootElement.class, new PlanCache.Parser<X3ML.RootElement>() {
+            @Override
+            public X3ML.RootElement parse(InputStream inputStream) {
+                throw new AssertionError("parsed although the plan is fresh");
+            }
+        });
+        Assert.assertEquals(X3MLReader.readX3ML(resource("/base/base.x3ml")).toString(), fromPlan.toString());
+        byte[] plan = FileUtils.readFileToByteArray(mappingPlan);
+        byte[] damaged = plan.clone();
+        damaged[damaged.length - 1] ^= 1;
+        FileUtils.writeByteArrayToFile(mappingPlan, damaged);
+        final int[] parses = {0};
+        PlanCache.load(mapping, X3ML.RootElement.class, new PlanCache.Parser<X3ML.RootElement>() {
+            @Override
+            public X3ML.RootElement parse(InputStream inputStream) {
+                parses[0]++;
+                return X3MLReader.readX3ML(inputStream);
+            }
+        });
+        Assert.assertEquals(1, parses[0]);
+        assertTrue(Arrays.equals(plan, FileUtils.readFileToByteArray(mappingPlan)));
+        FileUtils.writeStringToFile(mapping, FileUtils.readFileToString(mapping, "UTF-8") + "<!-- changed -->", "UTF-8");
+        Assert.assertEquals(expected, X3MLEngine.loadWithPlan(mapping).toString());
+        assertTrue(!Arrays.equals(plan, FileUtils.readFileToByteArray(mappingPlan)));
+    }
+
     @Test
     public void testSimple() {
         X3MLEngine engine = engine("/base/base.x3ml");
@@ -16,14 +16,21 @@
 package eu.delving.x3ml;
 
 import eu.delving.x3ml.engine.Generator;
+import eu.delving.x3ml.engine.Trace;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.junit.Test;
 
+import java.io.StringWriter;
 import java.util.List;
+import java.util.Map;
 
 import static eu.delving.x3ml.AllTests.*;
+import static eu.delving.x3ml.engine.X3ML.GeneratedValue;
+import static eu.delving.x3ml.engine.X3ML.SourceType;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author Gerald de Jong <gerald@delving.eu>
@@ -56,6 +63,48 @@ public class TestCoinA {
         String[] expectedResult = xmlToNTriples("/coin_a/02-join-rdf.xml");
         List<String> diff = compareNTriples(expectedResult, mappingResult);
         assertTrue("\n" + StringUtils.join(diff, "\n") + "\n", errorFree(diff));
+        assertTrue(engine.getConstantFolds().toString(), engine.getConstantFolds().getFolded() > 0);
+    }
+
+    @Test
+    public void test02JoinUnfolded() {
+        final Generator policy = X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2));
+        Generator neverConstant = new Generator() {
+            @Override
+            public void setDefaultArgType(SourceType sourceType) {
+                policy.setDefaultArgType(sourceType);
+            }
+
+            @Override
+            public void setLanguageFromMapping(String language) {
+                policy.setLanguageFromMapping(language);
+            }
+
+            @Override
+            public void setNamespace(String prefix, String uri) {
+                policy.setNamespace(prefix, uri);
+            }
+
+            @Override
+            public String getLanguageFromMapping() {
+                return policy.getLanguageFromMapping();
+            }
+
+            @Override
+            public GeneratedValue generate(String name, ArgValues arguments) {
+                return policy.generate(name, arguments);
+            }
+
+            @Override
+            public boolean isConstant(String name, Map<String, SourceType> argTypes) {
+                return false;
+            }
+        };
+        X3MLEngine engine = engine("/coin_a/02-join.x3ml");
+        String[] mappingResult = engine.execute(document("/coin_a/02-coin-input.xml"), neverConstant).toStringArray();
+        List<String> diff = compareNTriples(xmlToNTriples("/coin_a/02-join-rdf.xml"), mappingResult);
+        assertTrue("\n" + StringUtils.join(diff, "\n") + "\n", errorFree(diff));
+        assertEquals(engine.getConstantFolds().toString(), 0, engine.getConstantFolds().getFolded());
     }
 
     @Test
@@ -69,6 +118,43 @@ public class TestCoinA {
 //        System.out.println(StringUtils.join(diff, "\n"));
     }
 
+    @Test
+    public void testAppellationTrace() {
+        X3MLEngine engine = engine("/coin_a/04-appell.x3ml");
+        StringWriter writer = new StringWriter();
+        engine.setTrace(new Trace(Trace.Level.DEBUG, writer).generator("UUID"));
+        X3MLEngine.Output output = engine.execute(document("/coin_a/00-coin-input.xml"), policy("/coin_a/00-generator-policy.xml"));
+        String[] mappingResult = output.toStringArray();
+        String[] expectedResult = xmlToNTriples("/coin_a/04-appell-rdf.xml");
+        List<String> diff = compareNTriples(expectedResult, mappingResult);
+        assertTrue("\n" + StringUtils.join(diff, "\n") + "\n", errorFree(diff));
+        String[] lines = writer.toString().split("\n");
+        int links = 0, generators = 0;
+        for (String line : lines) {
+            assertTrue(line, line.startsWith("{\"level\":") && line.endsWith("}"));
+            if (line.contains("\"event\":\"link\"")) {
+                links++;
+            }
+            if (line.contains("\"event\":\"generator\"")) {
+                assertTrue(line, line.contains("\"generator\":\"UUID\""));
+                generators++;
+            }
+        }
+        assertTrue(writer.toString(), links > 0 && generators > 0);
+    }
+
+    @Test
+    public void testTraceLevelOption() {
+        assertEquals(Trace.Level.DEBUG, X3MLCommandLine.traceLevel("DEBUG"));
+        try {
+            X3MLCommandLine.traceLevel("LOUD");
+            fail("unknown trace level accepted");
+        }
+        catch (X3MLEngine.X3MLException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("LOUD"));
+        }
+    }
+
     @Test
     public void testAppellation() {
         X3MLEngine engine = engine("/coin_a/04-appell.x3ml");
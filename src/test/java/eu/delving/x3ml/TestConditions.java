@@ -19,17 +19,25 @@ import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.converters.reflection.PureJavaReflectionProvider;
 import com.thoughtworks.xstream.io.naming.NoNameCoder;
 import com.thoughtworks.xstream.io.xml.XppDriver;
+import eu.delving.x3ml.engine.ConditionPushdown;
 import eu.delving.x3ml.engine.GeneratorContext;
+import eu.delving.x3ml.engine.SourceBackend;
 import eu.delving.x3ml.engine.X3ML;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.junit.Test;
+import org.w3c.dom.Element;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -112,6 +120,159 @@ public class TestConditions implements X3ML {
                 .remove("pokey").expect(false);
     }
 
+    @Test
+    public void testWhitespace() {
+        use(
+                "<if>",
+                "  <equals value=\"pokey\">gumby</equals>",
+                "</if>"
+        )
+                .put("gumby", "  pokey\n").expect(true)
+                .put("gumby", "po key").expect(false);
+
+        use(
+                "<if>",
+                "  <exists>gumby</exists>",
+                "</if>"
+        )
+                .put("gumby", " \t\n").expect(false)
+                .put("gumby", " x ").expect(true);
+    }
+
+    @Test
+    public void testShortCircuit() {
+        Case and = use(
+                "<if>",
+                "  <and>",
+                "    <if>",
+                "      <exists>gumby</exists>",
+                "    </if>",
+                "    <if>",
+                "      <exists>pokey</exists>",
+                "    </if>",
+                "  </and>",
+                "</if>"
+        ).expect(false);
+        assertEquals("[gumby]", and.asked.toString());
+
+        Case or = use(
+                "<if>",
+                "  <or>",
+                "    <if>",
+                "      <exists>gumby</exists>",
+                "    </if>",
+                "    <if>",
+                "      <exists>pokey</exists>",
+                "    </if>",
+                "  </or>",
+                "</if>"
+        ).put("gumby", "present").expect(true);
+        assertEquals("[gumby]", or.asked.toString());
+    }
+
+    @Test
+    public void testPushdown() throws Exception {
+        StringBuilder xml = new StringBuilder("<records>");
+        for (int walk = 0; walk < 40; walk++) {
+            xml.append(String.format(
+                    "<REC%s><TYPE> %s </TYPE><NAME%s>name %d</NAME><NAME>other %d</NAME></REC>",
+                    walk % 5 == 0 ? " skip='yes'" : "", walk % 3 == 0 ? "medal" : "coin",
+                    walk % 2 == 0 ? " lang='en'" : "", walk, walk
+            ));
+        }
+        xml.append("</records>");
+        X3MLEngine pushed = X3MLEngine.load(IOUtils.toInputStream(PUSHDOWN_MAPPING
+                .replace("TYPE_PATH", "TYPE/text()").replace("SKIP_PATH", "@skip").replace("LANG_PATH", "@lang"), "UTF-8"));
+        X3MLEngine kept = X3MLEngine.load(IOUtils.toInputStream(PUSHDOWN_MAPPING
+                .replace("TYPE_PATH", "TYPE[1]/text()").replace("SKIP_PATH", "@skip[1]").replace("LANG_PATH", "@lang[1]"), "UTF-8"));
+        log.info(pushed.getConditionPushdown());
+        log.info(kept.getConditionPushdown());
+        for (ConditionPushdown.Entry entry : pushed.getConditionPushdown().getEntries()) {
+            assertTrue(entry.toString(), entry.isPushed());
+        }
+        for (ConditionPushdown.Entry entry : kept.getConditionPushdown().getEntries()) {
+            assertFalse(entry.toString(), entry.isPushed());
+        }
+        assertEquals(2, pushed.getConditionPushdown().getEntries().size());
+        String[] pushedResult = pushed.execute(element(xml), X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2))).toStringArray();
+        String[] keptResult = kept.execute(element(xml), X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2))).toStringArray();
+        List<String> diff = AllTests.compareNTriples(keptResult, pushedResult);
+        assertTrue("\n" + StringUtils.join(diff, "\n") + "\n", AllTests.errorFree(diff));
+        assertTrue(StringUtils.join(pushedResult, "\n").contains("\"name 38\""));
+    }
+
+    @Test
+    public void testPushdownCData() throws Exception {
+        String xml = "<records>" +
+                "<REC><TYPE> <![CDATA[coin]]></TYPE><NAME lang='en'>split 1</NAME></REC>" +
+                "<REC><TYPE><![CDATA[co]]>in </TYPE><NAME lang='en'>split 2</NAME></REC>" +
+                "<REC><TYPE> <![CDATA[medal]]></TYPE><NAME lang='en'>split 3</NAME></REC>" +
+                "</records>";
+        X3MLEngine pushed = X3MLEngine.load(IOUtils.toInputStream(PUSHDOWN_MAPPING
+                .replace("TYPE_PATH", "TYPE/text()").replace("SKIP_PATH", "@skip").replace("LANG_PATH", "@lang"), "UTF-8"));
+        X3MLEngine kept = X3MLEngine.load(IOUtils.toInputStream(PUSHDOWN_MAPPING
+                .replace("TYPE_PATH", "TYPE[1]/text()").replace("SKIP_PATH", "@skip[1]").replace("LANG_PATH", "@lang[1]"), "UTF-8"));
+        X3MLEngine tree = X3MLEngine.load(IOUtils.toInputStream(PUSHDOWN_MAPPING
+                .replace("TYPE_PATH", "TYPE[1]/text()").replace("SKIP_PATH", "@skip[1]").replace("LANG_PATH", "@lang[1]"), "UTF-8"), SourceBackend.TINY_TREE);
+        String[] pushedResult = pushed.execute(element(xml), X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2))).toStringArray();
+        String[] keptResult = kept.execute(element(xml), X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2))).toStringArray();
+        String[] treeResult = tree.execute(element(xml), X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2))).toStringArray();
+        List<String> diff = AllTests.compareNTriples(keptResult, pushedResult);
+        assertTrue("\n" + StringUtils.join(diff, "\n") + "\n", AllTests.errorFree(diff));
+        diff = AllTests.compareNTriples(treeResult, keptResult);
+        assertTrue("\n" + StringUtils.join(diff, "\n") + "\n", AllTests.errorFree(diff));
+        String all = StringUtils.join(keptResult, "\n");
+        assertTrue(all, all.contains("\"split 1\"") && all.contains("\"split 2\"") && !all.contains("\"split 3\""));
+    }
+
+    private static final String PUSHDOWN_MAPPING = toString(new String[]{
+            "<x3ml version=\"1.0\" source_type=\"xpath\">",
+            "  <namespaces>",
+            "    <namespace prefix=\"crm\" uri=\"http://www.cidoc-crm.org/cidoc-crm/\"/>",
+            "    <namespace prefix=\"rdfs\" uri=\"http://www.w3.org/2000/01/rdf-schema#\"/>",
+            "  </namespaces>",
+            "  <mappings>",
+            "    <mapping>",
+            "      <domain>",
+            "        <source_node>//REC</source_node>",
+            "        <target_node>",
+            "          <if><and>",
+            "            <if><equals value=\"coin\">TYPE_PATH</equals></if>",
+            "            <if><not><if><exists>SKIP_PATH</exists></if></not></if>",
+            "          </and></if>",
+            "          <entity>",
+            "            <type>crm:E22_Man-Made_Object</type>",
+            "            <instance_generator name=\"UUID\"/>",
+            "            <label_generator name=\"Literal\"><arg name=\"text\" type=\"position\"/></label_generator>",
+            "          </entity>",
+            "        </target_node>",
+            "      </domain>",
+            "      <link>",
+            "        <path>",
+            "          <source_relation><relation>NAME</relation></source_relation>",
+            "          <target_relation><relationship>crm:P1_is_identified_by</relationship></target_relation>",
+            "        </path>",
+            "        <range>",
+            "          <source_node>NAME</source_node>",
+            "          <target_node>",
+            "            <if><exists>LANG_PATH</exists></if>",
+            "            <entity>",
+            "              <type>crm:E41_Appellation</type>",
+            "              <instance_generator name=\"UUID\"/>",
+            "              <label_generator name=\"Literal\"><arg name=\"text\">text()</arg></label_generator>",
+            "            </entity>",
+            "          </target_node>",
+            "        </range>",
+            "      </link>",
+            "    </mapping>",
+            "  </mappings>",
+            "</x3ml>"
+    });
+
+    private static Element element(CharSequence xml) throws Exception {
+        return AllTests.documentBuilderFactory().newDocumentBuilder().parse(IOUtils.toInputStream(xml.toString(), "UTF-8")).getDocumentElement();
+    }
+
     // ====================================
 
     static Case use(String... conditionLines) {
@@ -121,6 +282,7 @@ public class TestConditions implements X3ML {
     static class Case extends GeneratorContext {
         Condition condition;
         Map<String, String> known = new TreeMap<String, String>();
+        List<String> asked = new ArrayList<String>();
 
         Case(String... conditionLines) {
             super(null, null, null, 0);
@@ -149,18 +311,18 @@ public class TestConditions implements X3ML {
         }
 
         @Override
-        public GeneratedValue get(String variable) {
+        public GeneratedValue get(int variableSlot) {
             return null;
         }
 
         @Override
-        public void put(String variable, GeneratedValue generatedValue) {
+        public void put(int variableSlot, GeneratedValue generatedValue) {
         }
 
         @Override
-        public String evaluate(String expression) {
-            String evaluation = known.get(expression);
-            return evaluation == null ? "" : evaluation;
+        protected String nodeValue(String expression) {
+            asked.add(expression);
+            return known.get(expression);
         }
     }
 
@@ -15,14 +15,28 @@
 //===========================================================================
 package eu.delving.x3ml;
 
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.vocabulary.RDFS;
 import eu.delving.x3ml.engine.Generator;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.junit.Test;
+import org.w3c.dom.Element;
 
+import java.io.ByteArrayInputStream;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import static eu.delving.x3ml.AllTests.*;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -45,5 +59,41 @@ public class TestDoubleJoin {
         assertTrue("\nLINES:"+ diff.size() + "\n" + StringUtils.join(diff, "\n") + "\n", errorFree(diff));
     }
 
-
+    @Test
+    public void testScaledDoubleJoin() throws Exception {
+        int actors = 300, projects = 200, roles = 1500;
+        Random random = new Random(1);
+        Map<String, Set<String>> expected = new TreeMap<String, Set<String>>();
+        StringBuilder xml = new StringBuilder("<dataroot>");
+        for (int actor = 0; actor < actors; actor++) {
+            xml.append(String.format("<actr><srl>A%d</srl><actr1>Actor %d</actr1></actr>", actor, actor));
+        }
+        for (int role = 0; role < roles; role++) {
+            int actor = random.nextInt(actors), project = random.nextInt(projects);
+            xml.append(String.format("<actr_vs_proj><srl>%d</srl><cptproj_srl>P%d</cptproj_srl><actr_srl>A%d</actr_srl></actr_vs_proj>", role, project, actor));
+            Set<String> performed = expected.get("Actor " + actor);
+            if (performed == null) expected.put("Actor " + actor, performed = new TreeSet<String>());
+            performed.add("Project " + project);
+        }
+        for (int project = 0; project < projects; project++) {
+            xml.append(String.format("<cptproj><srl>P%d</srl><cptproj1>Project %d</cptproj1></cptproj>", project, project));
+        }
+        xml.append("</dataroot>");
+        Element root = documentBuilderFactory().newDocumentBuilder().parse(new ByteArrayInputStream(xml.toString().getBytes("UTF-8"))).getDocumentElement();
+        X3MLEngine engine = engine("/double_join/doublejoin.x3ml");
+        long start = System.currentTimeMillis();
+        Model model = engine.execute(root, X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(4))).getModel();
+        log.info(String.format("%d actors, %d roles, %d projects in %dms", actors, roles, projects, System.currentTimeMillis() - start));
+        Property performedProperty = model.createProperty("http://www.cidoc-crm.org/cidoc-crm/P14i_performed");
+        Map<String, Set<String>> actual = new TreeMap<String, Set<String>>();
+        StmtIterator statements = model.listStatements(null, performedProperty, (Resource) null);
+        while (statements.hasNext()) {
+            Statement statement = statements.next();
+            String actor = statement.getSubject().getProperty(RDFS.label).getString();
+            Set<String> performed = actual.get(actor);
+            if (performed == null) actual.put(actor, performed = new TreeSet<String>());
+            performed.add(statement.getResource().getProperty(RDFS.label).getString());
+        }
+        assertEquals(expected, actual);
+    }
 }
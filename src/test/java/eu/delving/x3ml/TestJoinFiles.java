@@ -0,0 +1,233 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml;
+
+import eu.delving.x3ml.engine.JoinFiles;
+import eu.delving.x3ml.engine.SourceBackend;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static eu.delving.x3ml.AllTests.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Range records taken from a separate file, in memory and on disk.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+
+public class TestJoinFiles {
+    private final Logger log = Logger.getLogger(getClass());
+
+    @Test
+    public void testInMemory() throws Exception {
+        checkFindSpotFile(SourceBackend.DOM, JoinFiles.DEFAULT_MEMORY_THRESHOLD, false);
+        checkFindSpotFile(SourceBackend.TINY_TREE, JoinFiles.DEFAULT_MEMORY_THRESHOLD, false);
+    }
+
+    @Test
+    public void testOnDisk() throws Exception {
+        checkFindSpotFile(SourceBackend.DOM, 0, true);
+        checkFindSpotFile(SourceBackend.TINY_TREE, 0, true);
+    }
+
+    @Test
+    public void testAuxiliaryInput() throws Exception {
+        checkAuxiliaryInput(SourceBackend.DOM, JoinFiles.DEFAULT_MEMORY_THRESHOLD);
+        checkAuxiliaryInput(SourceBackend.DOM, 0);
+        checkAuxiliaryInput(SourceBackend.TINY_TREE, JoinFiles.DEFAULT_MEMORY_THRESHOLD);
+        checkAuxiliaryInput(SourceBackend.TINY_TREE, 0);
+    }
+
+    @Test
+    public void testThreads() throws Exception {
+        final X3MLEngine engine = engine("/coin_a/02-join.x3ml");
+        engine.getJoinFiles().add("//FIND_SPOT", findSpotFile(removeFindSpots(document("/coin_a/02-coin-input.xml"))));
+        final String[] expectedResult = xmlToNTriples("/coin_a/02-join-rdf.xml");
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int walk = 0; walk < 4; walk++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int record = 0; record < 20; record++) {
+                        Element input = document("/coin_a/02-coin-input.xml");
+                        removeFindSpots(input);
+                        String[] mappingResult = engine.execute(
+                                input,
+                                X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2))
+                        ).toStringArray();
+                        List<String> diff = compareNTriples(expectedResult, mappingResult);
+                        if (!errorFree(diff)) {
+                            failures.add(StringUtils.join(diff, "\n"));
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        engine.getJoinFiles().close();
+        assertTrue(StringUtils.join(failures, "\n"), failures.isEmpty());
+    }
+
+    @Test(expected = X3MLEngine.X3MLException.class)
+    public void testUnboundInput() {
+        X3MLEngine engine = engine("/coin_a/11-aux.x3ml");
+        engine.execute(document("/coin_a/11-aux-coin-input.xml"), X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2)));
+    }
+
+    @Test
+    public void testLargerThanHeap() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(
+                java, "-Xmx32m", "-cp", System.getProperty("java.class.path"), getClass().getName()
+        ).redirectErrorStream(true).start();
+        String output = IOUtils.toString(process.getInputStream(), "UTF-8");
+        int exit = process.waitFor();
+        log.info(output);
+        assertEquals(output, 0, exit);
+    }
+
+    private void checkAuxiliaryInput(SourceBackend backend, long memoryThreshold) throws Exception {
+        X3MLEngine engine = X3MLEngine.load(resource("/coin_a/11-aux.x3ml"), backend);
+        engine.getJoinFiles().addInput("places", new File(getClass().getResource("/coin_a/11-aux-places.xml").toURI()));
+        engine.getJoinFiles().setMemoryThreshold(memoryThreshold);
+        for (int record = 0; record < 2; record++) {
+            String[] mappingResult = engine.execute(
+                    document("/coin_a/11-aux-coin-input.xml"),
+                    X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2))
+            ).toStringArray();
+            String[] expectedResult = xmlToNTriples("/coin_a/02-join-rdf.xml");
+            List<String> diff = compareNTriples(expectedResult, mappingResult);
+            assertTrue(backend + "\n" + StringUtils.join(diff, "\n") + "\n", errorFree(diff));
+        }
+        assertEquals(memoryThreshold == 0, engine.getJoinFiles().isOnDisk("$places//FIND_SPOT", "FS_ID/text()"));
+        engine.getJoinFiles().close();
+    }
+
+    private void checkFindSpotFile(SourceBackend backend, long memoryThreshold, boolean onDisk) throws Exception {
+        Element input = document("/coin_a/02-coin-input.xml");
+        File places = findSpotFile(removeFindSpots(input));
+        X3MLEngine engine = X3MLEngine.load(resource("/coin_a/02-join.x3ml"), backend);
+        engine.getJoinFiles().add("//FIND_SPOT", places);
+        engine.getJoinFiles().setMemoryThreshold(memoryThreshold);
+        String[] mappingResult = engine.execute(
+                input,
+                X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2))
+        ).toStringArray();
+        assertEquals(onDisk, engine.getJoinFiles().isOnDisk("//FIND_SPOT", "FS_ID/text()"));
+        engine.getJoinFiles().close();
+        String[] expectedResult = xmlToNTriples("/coin_a/02-join-rdf.xml");
+        List<String> diff = compareNTriples(expectedResult, mappingResult);
+        assertTrue(backend + "\n" + StringUtils.join(diff, "\n") + "\n", errorFree(diff));
+    }
+
+    private static List<Node> removeFindSpots(Element input) {
+        List<Node> findSpots = new ArrayList<Node>();
+        NodeList nodes = input.getElementsByTagName("FIND_SPOT");
+        for (int walk = 0; walk < nodes.getLength(); walk++) {
+            findSpots.add(nodes.item(walk));
+        }
+        for (Node findSpot : findSpots) {
+            input.removeChild(findSpot);
+        }
+        return findSpots;
+    }
+
+    private static File findSpotFile(List<Node> findSpots) throws Exception {
+        File places = File.createTempFile("find-spots", ".xml");
+        places.deleteOnExit();
+        Writer out = new OutputStreamWriter(new FileOutputStream(places), "UTF-8");
+        out.write("<places>");
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        for (Node findSpot : findSpots) {
+            transformer.transform(new DOMSource(findSpot), new StreamResult(out));
+        }
+        out.write("</places>");
+        out.close();
+        return places;
+    }
+
+    /**
+     * Run in a small heap: join a few coins against a find spot file that is
+     * larger than the whole heap. A missing find spot fails the assertion and
+     * so the exit code.
+     */
+
+    public static void main(String[] args) throws Exception {
+        Logger log = Logger.getLogger(TestJoinFiles.class);
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        File places = File.createTempFile("find-spots", ".xml");
+        places.deleteOnExit();
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(places), "UTF-8"));
+        out.write("<places>");
+        String padding = StringUtils.repeat("x", 1000);
+        int count = 0;
+        while (places.length() < maxMemory * 2) {
+            for (int walk = 0; walk < 1000; walk++, count++) {
+                out.write(String.format("<FIND_SPOT><FS_ID>%d</FS_ID><FS_NAME>Spot %d</FS_NAME><NOTE>%s</NOTE></FIND_SPOT>", count, count, padding));
+            }
+            out.flush();
+        }
+        out.write("</places>");
+        out.close();
+        log.info(String.format("heap %dMB, join file %dMB with %d records", maxMemory >> 20, places.length() >> 20, count));
+        StringBuilder coins = new StringBuilder("<dataroot>");
+        int[] spots = {7, count / 2, count - 1};
+        for (int spot : spots) {
+            coins.append(String.format("<COIN><ID>%d</ID><FIND_SPOT_ID>%d</FIND_SPOT_ID></COIN>", spot, spot));
+        }
+        coins.append("</dataroot>");
+        Element input = documentBuilderFactory().newDocumentBuilder().parse(IOUtils.toInputStream(coins.toString(), "UTF-8")).getDocumentElement();
+        X3MLEngine engine = X3MLEngine.load(resource("/coin_a/02-join.x3ml"));
+        engine.getJoinFiles().add("//FIND_SPOT", places);
+        long start = System.currentTimeMillis();
+        String[] triples = engine.execute(input, X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2))).toStringArray();
+        log.info(String.format("mapped in %dms", System.currentTimeMillis() - start));
+        String all = StringUtils.join(triples, "\n");
+        for (int spot : spots) {
+            assertTrue("missing spot " + spot, all.contains("\"Spot " + spot + "\""));
+        }
+        engine.getJoinFiles().close();
+        System.exit(0);
+    }
+}
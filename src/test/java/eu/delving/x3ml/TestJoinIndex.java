@@ -0,0 +1,203 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml;
+
+import eu.delving.x3ml.engine.JoinIndex;
+import eu.delving.x3ml.engine.JoinReport;
+import eu.delving.x3ml.engine.MergeJoin;
+import eu.delving.x3ml.engine.SourceBackend;
+import eu.delving.x3ml.engine.SourceInput;
+import eu.delving.x3ml.engine.X3ML;
+import eu.delving.x3ml.engine.XPathCache;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static eu.delving.x3ml.AllTests.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+
+public class TestJoinIndex {
+    private final Logger log = Logger.getLogger(getClass());
+
+    @Test
+    public void testLookup() throws Exception {
+        for (SourceBackend backend : SourceBackend.values()) {
+            SourceInput input = input(backend, 12000);
+            JoinIndex index = JoinIndex.build(input, new JoinIndex.Key("//item", "@group"));
+            log.info(backend + " " + index);
+            assertEquals(12000, index.getRangeCount());
+            assertEquals(7, index.getCardinality());
+            assertEquals(backend.equals(SourceBackend.TINY_TREE), index.isParallel());
+            List<Node> group = index.lookup("3");
+            List<Node> expected = input.nodeList(input.rootNode(), "//item[@group='3']");
+            assertEquals(expected.size(), group.size());
+            for (int walk = 0; walk < group.size(); walk++) {
+                assertEquals(expected.get(walk), group.get(walk));
+            }
+            assertTrue(index.lookup("nothing").isEmpty());
+        }
+    }
+
+    @Test
+    public void testCompositeKey() throws Exception {
+        SourceInput input = input(SourceBackend.DOM, 100);
+        JoinIndex index = JoinIndex.build(input, new JoinIndex.Key("//item", "@group", "@parity"));
+        assertEquals(14, index.getCardinality());
+        for (Node node : index.lookup("2", "odd")) {
+            assertEquals("2", input.valueAt(node, "@group"));
+            assertEquals("odd", input.valueAt(node, "@parity"));
+        }
+        assertEquals(input.countNodes(input.rootNode(), "//item[@group='2' and @parity='odd']"), index.lookup("2", "odd").size());
+    }
+
+    @Test
+    public void testKeyIncludesKeyPath() throws Exception {
+        SourceInput input = input(SourceBackend.DOM, 100);
+        List<Node> byGroup = input.rootNodeList("//item", "@group", "odd");
+        List<Node> byParity = input.rootNodeList("//item", "@parity", "odd");
+        assertTrue(byGroup.isEmpty());
+        assertEquals(50, byParity.size());
+        assertEquals(2, input.getJoinIndexes().size());
+        assertSame(input.rootNodeList("//item", "@parity", "even").get(0).getParentNode(), input.rootNode());
+    }
+
+    @Test
+    public void testReport() {
+        X3MLEngine engine = engine("/coin_a/02-join.x3ml");
+        for (int record = 0; record < 3; record++) {
+            engine.execute(document("/coin_a/02-coin-input.xml"), X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2)));
+        }
+        log.info(engine.getJoinReport());
+        List<JoinReport.Entry> entries = engine.getJoinReport().getEntries();
+        assertFalse(entries.isEmpty());
+        for (JoinReport.Entry entry : entries) {
+            assertEquals(3, entry.builds);
+            assertTrue(entry.keys > 0);
+        }
+    }
+
+    @Test
+    public void testMergeJoin() throws Exception {
+        String[] hashed = coinJoin(false, false);
+        String[] merged = coinJoin(true, false);
+        List<String> diff = compareNTriples(hashed, merged);
+        assertTrue("\n" + StringUtils.join(diff, "\n") + "\n", errorFree(diff));
+    }
+
+    @Test
+    public void testMergeJoinFallback() throws Exception {
+        String[] hashed = coinJoin(false, true);
+        String[] merged = coinJoin(true, true);
+        List<String> diff = compareNTriples(hashed, merged);
+        assertTrue("\n" + StringUtils.join(diff, "\n") + "\n", errorFree(diff));
+    }
+
+    @Test
+    public void testJoinSyntax() {
+        X3ML.Join single = new X3ML.Join(relation(" srl == actr_srl ", null, null));
+        assertEquals("srl", single.domainForeignKey);
+        assertEquals("actr_srl", single.rangePrimaryKey);
+        assertNull(single.intermediateFirst);
+        X3ML.Join within = new X3ML.Join(relation("srl == actr_srl", "//actr_vs_proj", "cptproj_srl == srl"));
+        assertEquals("srl", within.domainForeignKey);
+        assertEquals("actr_srl", within.intermediateFirst);
+        assertEquals("cptproj_srl", within.intermediateSecond);
+        assertEquals("srl", within.rangePrimaryKey);
+        X3ML.Join path = new X3ML.Join(relation("NAME", null, null));
+        assertNull(path.domainForeignKey);
+        assertNull(path.nodeInside);
+    }
+
+    private static X3ML.SourceRelation relation(String relation, String node, String relation2) {
+        X3ML.SourceRelation sourceRelation = new X3ML.SourceRelation();
+        sourceRelation.relation = source(relation);
+        sourceRelation.node = source(node);
+        sourceRelation.relation2 = source(relation2);
+        return sourceRelation;
+    }
+
+    private static X3ML.Source source(String expression) {
+        if (expression == null) {
+            return null;
+        }
+        X3ML.Source source = new X3ML.Source();
+        source.expression = expression;
+        return source;
+    }
+
+    @Test
+    public void testKeyOrder() {
+        assertTrue(MergeJoin.compare("9", "10") < 0);
+        assertTrue(MergeJoin.compare("009", "10") < 0);
+        assertTrue(MergeJoin.compare("10", "010") != 0);
+        assertTrue(MergeJoin.compare("999", "A") < 0);
+        assertTrue(MergeJoin.compare("", "1") > 0);
+        assertTrue(MergeJoin.compare("B", "AB") > 0);
+        assertEquals(0, MergeJoin.compare("42", "42"));
+    }
+
+    private String[] coinJoin(boolean declareSorted, boolean reverseRange) throws Exception {
+        StringBuilder xml = new StringBuilder("<dataroot>");
+        for (int coin = 0; coin < 200; coin++) {
+            xml.append(String.format("<COIN><ID>%d</ID><FIND_SPOT_ID>%d</FIND_SPOT_ID></COIN>", coin, coin / 3 * 2));
+        }
+        for (int walk = 0; walk < 120; walk++) {
+            int spot = reverseRange ? 119 - walk : walk;
+            xml.append(String.format("<FIND_SPOT><FS_ID>%d</FS_ID><FS_NAME>Spot %d</FS_NAME></FIND_SPOT>", spot, spot));
+            if (spot % 10 == 0) {
+                xml.append(String.format("<FIND_SPOT><FS_ID>%d</FS_ID><FS_NAME>Twin %d</FS_NAME></FIND_SPOT>", spot, spot));
+            }
+        }
+        xml.append("</dataroot>");
+        Element root = documentBuilderFactory().newDocumentBuilder().parse(new ByteArrayInputStream(xml.toString().getBytes("UTF-8"))).getDocumentElement();
+        X3MLEngine engine = engine("/coin_a/02-join.x3ml");
+        if (declareSorted) {
+            engine.getSortedInputs().declare("//COIN", "FIND_SPOT_ID");
+            engine.getSortedInputs().declare("//FIND_SPOT", "FS_ID");
+        }
+        String[] result = engine.execute(root, X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(3))).toStringArray();
+        if (declareSorted) {
+            assertEquals(reverseRange ? 0 : 1, engine.getSortedInputs().getMerges());
+            assertEquals(reverseRange ? 1 : 0, engine.getSortedInputs().getFallbacks());
+            assertEquals(reverseRange ? 1 : 0, engine.getJoinReport().getEntries().size());
+        }
+        return result;
+    }
+
+    private static SourceInput input(SourceBackend backend, int count) throws Exception {
+        StringBuilder xml = new StringBuilder("<items>");
+        for (int walk = 0; walk < count; walk++) {
+            xml.append(String.format("<item group='%d' parity='%s'/>", walk % 7, walk % 2 == 0 ? "even" : "odd"));
+        }
+        xml.append("</items>");
+        Element root = documentBuilderFactory().newDocumentBuilder().parse(new ByteArrayInputStream(xml.toString().getBytes("UTF-8"))).getDocumentElement();
+        return backend.create(root, new XPathCache(), null, null);
+    }
+}
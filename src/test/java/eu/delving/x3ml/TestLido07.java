@@ -15,13 +15,21 @@
 //===========================================================================
 package eu.delving.x3ml;
 
+import eu.delving.x3ml.engine.XPathCache;
+import eu.delving.x3ml.engine.XPathInput;
 import org.apache.log4j.Logger;
 import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import static eu.delving.x3ml.AllTests.*;
+import static org.junit.Assert.assertEquals;
 
 /**
  * @author Gerald de Jong <gerald@delving.eu>
@@ -55,5 +63,51 @@ public class TestLido07 {
 //        assertArrayEquals("Does not match expected", expectedResult, mappingResult);
     }
 
+    @Test
+    public void testMappingUntouched() {
+        X3MLEngine engine = engine("/lido07/lido07.x3ml");
+        String before = engine.toString();
+        engine.execute(document("/lido07/lido07.xml"), policy("/lido07/lido07-gen-policy.xml"));
+        assertEquals("executing must not change the mapping", before, engine.toString());
+    }
 
+    @Test
+    public void testLanguageLookups() {
+        Element root = document("/lido07/lido07.xml");
+        List<Node> nodes = new ArrayList<Node>();
+        gatherNodes(root, nodes);
+        int lookupsPerNode = 3; // a generator typically has a few xpath arguments
+        XPathInput input = new XPathInput(root, new XPathCache(), null, null);
+        int ancestorWalks = 0;
+        long walkTime = 0, memoTime = 0;
+        for (int round = 0; round < lookupsPerNode; round++) {
+            for (Node node : nodes) {
+                long start = System.nanoTime();
+                String walked = null;
+                for (Node walk = node; walk != null && walked == null; walk = walk.getParentNode()) {
+                    ancestorWalks++;
+                    NamedNodeMap attributes = walk.getAttributes();
+                    Node lang = attributes == null ? null : attributes.getNamedItemNS("http://www.w3.org/XML/1998/namespace", "lang");
+                    if (lang != null) walked = lang.getNodeValue();
+                }
+                walkTime += System.nanoTime() - start;
+                start = System.nanoTime();
+                String memoized = input.getLanguage(node);
+                memoTime += System.nanoTime() - start;
+                assertEquals(walked, memoized);
+            }
+        }
+        int inspections = nodes.size() + 1; // every node once, plus the document
+        log.info(String.format(
+                "%d nodes x %d lookups: %d ancestor steps walked (%d us), %d with memo (%d us), %d removed",
+                nodes.size(), lookupsPerNode, ancestorWalks, walkTime / 1000, inspections, memoTime / 1000, ancestorWalks - inspections
+        ));
+    }
+
+    private static void gatherNodes(Node node, List<Node> nodes) {
+        nodes.add(node);
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            gatherNodes(child, nodes);
+        }
+    }
 }
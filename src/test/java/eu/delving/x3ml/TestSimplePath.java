@@ -0,0 +1,197 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml;
+
+import eu.delving.x3ml.engine.SimplePath;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static eu.delving.x3ml.AllTests.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The direct DOM walk for simple paths must find exactly the nodes that
+ * Saxon finds, in the same order.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+
+public class TestSimplePath {
+    private final Logger log = Logger.getLogger(getClass());
+
+    private static final String[][] FIXTURES = {
+            // mapping, input
+            {"/base/base.x3ml", "/base/base.xml"},
+            {"/coin_a/05-multi.x3ml", "/coin_a/00-coin-input.xml"},
+            {"/coin_a/09-order-A.x3ml", "/coin_a/02-coin-input.xml"},
+            {"/coin_b/10-join.x3ml", "/coin_b/01-coin-input-simplified.xml"},
+            {"/double_join/doublejoin.x3ml", "/double_join/doubleinput.xml"},
+            {"/gml/gml-1.x3ml", "/gml/gml-1-input.xml"},
+            {"/lido07/lido07.x3ml", "/lido07/lido07.xml"},
+            {"/bm/BM20.x3ml", "/bm/BM20.xml"},
+            {"/rijks/02-attribute.x3ml", "/rijks/rijks.xml"},
+    };
+
+    private static final String SAMPLE = "" +
+            "<r xmlns:q='urn:q'>" +
+            "<a>x<![CDATA[y]]>z<!-- c -->w<b/>v</a>" +
+            "<q:a q:k='1' k='2'><b>q</b></q:a>" +
+            "<a k='3'><b>one</b><b>two</b><c><b>no</b></c></a>" +
+            "</r>";
+
+    @Test
+    public void testClassification() {
+        NamespaceContext namespaces = namespaces("q", "urn:q");
+        for (String simple : new String[]{"a", "a/b", "q:a/b", "@k", "@q:k", "a/@k", "text()", "a/text()", "a/b/text()"}) {
+            assertNotNull(simple, SimplePath.parse(simple, namespaces));
+        }
+        for (String complex : new String[]{"/a", "//b", "a//b", "a/", "a[1]", "*", "a/*", ".", "..", "a/..", "@*",
+                "text()/a", "@k/a", "z:a", "child::a", "count(a)", "a | b", "concat(a,b)", "a/node()"}) {
+            assertNull(complex, SimplePath.parse(complex, namespaces));
+        }
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        Element root = documentBuilderFactory().newDocumentBuilder().parse(new ByteArrayInputStream(SAMPLE.getBytes("UTF-8"))).getDocumentElement();
+        NamespaceContext namespaces = namespaces("q", "urn:q");
+        int compared = 0;
+        for (String expression : new String[]{"a", "a/b", "q:a", "q:a/b", "q:a/@k", "q:a/@q:k", "a/@k", "a/text()", "a/b/text()", "q:a/b/text()"}) {
+            compared += compare(root, expression, namespaces);
+        }
+        List<Node> text = SimplePath.parse("a/text()", namespaces).evaluate(root);
+        assertEquals("a CDATA run counts as one text node", 3, text.size());
+        assertEquals("x", text.get(0).getNodeValue());
+        assertTrue(compared > 0);
+    }
+
+    @Test
+    public void testFixtures() throws Exception {
+        for (String[] fixture : FIXTURES) {
+            Element mapping = document(fixture[0]);
+            NamespaceContext namespaces = namespaces(mapping);
+            Set<String> expressions = expressions(mapping);
+            List<Node> contexts = new ArrayList<Node>();
+            gatherElements(document(fixture[1]), contexts);
+            int compared = 0;
+            for (String expression : expressions) {
+                if (SimplePath.parse(expression, namespaces) == null) continue;
+                for (Node context : contexts) {
+                    compared += compare(context, expression, namespaces);
+                }
+            }
+            log.info(String.format("%s: %d expressions, %d nodes compared", fixture[0], expressions.size(), compared));
+        }
+    }
+
+    @Test
+    public void testEngineCounts() {
+        X3MLEngine engine = engine("/coin_a/05-multi.x3ml");
+        engine.execute(document("/coin_a/00-coin-input.xml"), policy("/coin_a/00-generator-policy.xml"));
+        log.info(engine.getXPathCache());
+        assertTrue(engine.getXPathCache().getFastPaths() > 0);
+    }
+
+    private int compare(Node context, String expression, NamespaceContext namespaces) throws XPathExpressionException {
+        List<Node> walked = SimplePath.parse(expression, namespaces).evaluate(context);
+        XPath path = net.sf.saxon.xpath.XPathFactoryImpl.newInstance().newXPath();
+        path.setNamespaceContext(namespaces);
+        NodeList expected = (NodeList) path.compile(expression).evaluate(context, XPathConstants.NODESET);
+        assertNotNull(expression, walked);
+        assertEquals(expression + " at " + context.getNodeName(), expected.getLength(), walked.size());
+        for (int walk = 0; walk < walked.size(); walk++) {
+            assertSame(expression + " at " + context.getNodeName(), expected.item(walk), walked.get(walk));
+        }
+        return walked.size();
+    }
+
+    private static void gatherElements(Node node, List<Node> elements) {
+        if (elements.size() >= 2000) return;
+        elements.add(node);
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) gatherElements(child, elements);
+        }
+    }
+
+    private static Set<String> expressions(Element mapping) {
+        Set<String> expressions = new TreeSet<String>();
+        for (String tag : new String[]{"source_node", "relation", "node", "arg"}) {
+            NodeList nodes = mapping.getElementsByTagName(tag);
+            for (int walk = 0; walk < nodes.getLength(); walk++) {
+                Element element = (Element) nodes.item(walk);
+                String expression = element.getTextContent().trim();
+                if (!expression.isEmpty() && !"constant".equals(element.getAttribute("type"))) {
+                    expressions.add(expression);
+                }
+            }
+        }
+        return expressions;
+    }
+
+    private static NamespaceContext namespaces(Element mapping) {
+        List<String> pairs = new ArrayList<String>();
+        NodeList nodes = mapping.getElementsByTagName("namespace");
+        for (int walk = 0; walk < nodes.getLength(); walk++) {
+            Element namespace = (Element) nodes.item(walk);
+            pairs.add(namespace.getAttribute("prefix"));
+            pairs.add(namespace.getAttribute("uri"));
+        }
+        return namespaces(pairs.toArray(new String[pairs.size()]));
+    }
+
+    private static NamespaceContext namespaces(String... prefixUri) {
+        final Map<String, String> map = new TreeMap<String, String>();
+        for (int walk = 0; walk < prefixUri.length; walk += 2) {
+            map.put(prefixUri[walk], prefixUri[walk + 1]);
+        }
+        return new NamespaceContext() {
+            @Override
+            public String getNamespaceURI(String prefix) {
+                return map.get(prefix);
+            }
+
+            @Override
+            public String getPrefix(String namespaceURI) {
+                return null;
+            }
+
+            @Override
+            public Iterator<String> getPrefixes(String namespaceURI) {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,93 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml;
+
+import eu.delving.x3ml.engine.Generator;
+import eu.delving.x3ml.engine.SourceBackend;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import java.util.List;
+
+import static eu.delving.x3ml.AllTests.*;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Every fixture is run against every source backend, and each of them must
+ * produce exactly what the DOM backend produces.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+
+public class TestSourceBackends {
+    private final Logger log = Logger.getLogger(getClass());
+
+    private static final String[][] FIXTURES = {
+            // mapping, input, policy (or null), uuid size
+            {"/base/base.x3ml", "/base/base.xml", "/base/base-gen-policy.xml", "1"},
+            {"/coin_a/01-coin-simple.x3ml", "/coin_a/00-coin-input.xml", null, "1"},
+            {"/coin_a/02-join.x3ml", "/coin_a/02-coin-input.xml", null, "2"},
+            {"/coin_a/03-join.x3ml", "/coin_a/00-coin-input.xml", "/coin_a/00-generator-policy.xml", "1"},
+            {"/coin_a/04-appell.x3ml", "/coin_a/00-coin-input.xml", "/coin_a/00-generator-policy.xml", "1"},
+            {"/coin_a/05-multi.x3ml", "/coin_a/00-coin-input.xml", "/coin_a/00-generator-policy.xml", "1"},
+            {"/coin_a/06-if.x3ml", "/coin_a/00-coin-input.xml", "/coin_a/00-generator-policy.xml", "1"},
+            {"/coin_a/07-date.x3ml", "/coin_a/00-coin-input.xml", "/coin_a/00-generator-policy.xml", "1"},
+            {"/coin_a/08-crmdig.x3ml", "/coin_a/00-coin-input.xml", "/coin_a/00-generator-policy.xml", "4"},
+            {"/coin_a/09-order-A.x3ml", "/coin_a/02-coin-input.xml", "/coin_a/00-generator-policy.xml", "4"},
+            {"/coin_a/09-order-B.x3ml", "/coin_a/02-coin-input.xml", "/coin_a/00-generator-policy.xml", "4"},
+            {"/coin_b/10-join.x3ml", "/coin_b/01-coin-input-simplified.xml", "/coin_a/00-generator-policy.xml", "2"},
+            {"/double_join/doublejoin.x3ml", "/double_join/doubleinput.xml", "/coin_a/00-generator-policy.xml", "2"},
+            {"/gml/gml-1.x3ml", "/gml/gml-1-input.xml", "/coin_a/00-generator-policy.xml", "1"},
+            {"/lido07/lido07.x3ml", "/lido07/lido07.xml", "/lido07/lido07-gen-policy.xml", "1"},
+            {"/bm/BM20.x3ml", "/bm/BM20.xml", "/bm/BM20-gen-policy.xml", "1"},
+            {"/bm/test1.x3ml", "/bm/20BMObjects-noEmptyTags.xml", "/bm/00-generator-policy.xml", "1"},
+            {"/rijks/rijks.x3ml", "/rijks/rijks.xml", "/rijks/rijks-policy.xml", "1"},
+            {"/rijks/02-attribute.x3ml", "/rijks/rijks.xml", "/rijks/02-attribute-policy.xml", "1"},
+            {"/rijks/01-dimension.x3ml", "/rijks/rijks.xml", "/rijks/01-dimension-policy.xml", "1"},
+    };
+
+    @Test
+    public void testConformance() {
+        SourceBackend[] backends = SourceBackend.values();
+        StringBuilder table = new StringBuilder(String.format("%n%-36s", "fixture"));
+        for (SourceBackend backend : backends) {
+            table.append(String.format("%12s", backend));
+        }
+        for (String[] fixture : FIXTURES) {
+            table.append(String.format("%n%-36s", fixture[0]));
+            String[] reference = null;
+            for (SourceBackend backend : backends) {
+                X3MLEngine engine = X3MLEngine.load(resource(fixture[0]), backend);
+                Generator policy = X3MLGeneratorPolicy.load(
+                        fixture[2] == null ? null : resource(fixture[2]),
+                        X3MLGeneratorPolicy.createUUIDSource(Integer.parseInt(fixture[3]))
+                );
+                long start = System.currentTimeMillis();
+                String[] result = engine.execute(document(fixture[1]), policy).toStringArray();
+                table.append(String.format("%10dms", System.currentTimeMillis() - start));
+                if (reference == null) {
+                    reference = result;
+                }
+                else {
+                    List<String> diff = compareNTriples(reference, result);
+                    assertTrue(backend + " " + fixture[0] + "\n" + StringUtils.join(diff, "\n") + "\n", errorFree(diff));
+                }
+            }
+        }
+        log.info(table);
+    }
+}
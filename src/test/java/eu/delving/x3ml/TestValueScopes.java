@@ -0,0 +1,156 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml;
+
+import eu.delving.x3ml.engine.ValueScopes;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static eu.delving.x3ml.AllTests.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Generated values of local mappings are let go when their domain node is
+ * finished, which must never change the output.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+
+public class TestValueScopes {
+    private final Logger log = Logger.getLogger(getClass());
+
+    @Test
+    public void testLocal() throws Exception {
+        StringBuilder xml = new StringBuilder("<records>");
+        for (int walk = 0; walk < 20; walk++) {
+            xml.append(String.format("<REC><NAME>name %d</NAME></REC>", walk));
+        }
+        xml.append("</records>");
+        X3MLEngine local = engine(mapping("//REC", "NAME", ""));
+        X3MLEngine kept = engine(mapping("//REC", "NAME[1]", ""));
+        String[] localResult = execute(local, xml);
+        String[] keptResult = execute(kept, xml);
+        log.info(local.getValueScopes());
+        assertSame(keptResult, localResult);
+        assertEquals(40, local.getValueScopes().getEvicted(0));
+        assertEquals(0, local.getValueScopes().getHeld());
+        assertEquals(0, kept.getValueScopes().getEvicted());
+        assertEquals(40, kept.getValueScopes().getHeld());
+    }
+
+    @Test
+    public void testNested() throws Exception {
+        String xml = "<records>" +
+                "<PART><NAME>outer 1</NAME><PART><NAME>inner 1</NAME><PART><NAME>innermost</NAME></PART></PART><PART><NAME>inner 2</NAME></PART></PART>" +
+                "<PART><NAME>outer 2</NAME></PART>" +
+                "</records>";
+        X3MLEngine local = engine(mapping("//PART", "NAME", ""));
+        X3MLEngine kept = engine(mapping("//PART", "NAME[1]", ""));
+        String[] localResult = execute(local, xml);
+        assertSame(execute(kept, xml), localResult);
+        assertEquals(10, local.getValueScopes().getEvicted(0));
+        assertEquals(0, local.getValueScopes().getHeld());
+    }
+
+    @Test
+    public void testUsedLater() throws Exception {
+        String xml = "<records><REC><NAME>one</NAME></REC><REC><NAME>two</NAME></REC></records>";
+        String later = "    <mapping>\n" +
+                "      <domain>\n" +
+                "        <source_node>//REC</source_node>\n" +
+                "        <target_node><entity><type>crm:E22_Man-Made_Object</type><instance_generator name=\"UUID\"/></entity></target_node>\n" +
+                "      </domain>\n" +
+                "    </mapping>\n";
+        X3MLEngine local = engine(mapping("//REC", "NAME", later));
+        X3MLEngine kept = engine(mapping("//REC", "NAME[1]", later));
+        String[] localResult = execute(local, xml);
+        assertSame(execute(kept, xml), localResult);
+        // the objects are looked for again by the second mapping, the appellations are not
+        assertEquals(2, local.getValueScopes().getEvicted(0));
+        assertEquals(2, local.getValueScopes().getEvicted(1));
+        assertEquals(2, StringUtils.join(localResult, "\n").split("E22_Man-Made_Object").length - 1);
+    }
+
+    @Test
+    public void testLeavingTheSubtree() throws Exception {
+        String xml = "<records><REC><NAME>one</NAME></REC><REC><NAME>two</NAME></REC><SHARED>place</SHARED></records>";
+        X3MLEngine engine = engine(mapping("//REC", "root()/records/SHARED", ""));
+        String[] result = execute(engine, xml);
+        assertEquals(0, engine.getValueScopes().getEvicted());
+        Set<String> shared = new TreeSet<String>();
+        for (String triple : result) {
+            if (triple.contains("P1_is_identified_by")) {
+                shared.add(triple.substring(triple.lastIndexOf('<'), triple.lastIndexOf('>') + 1));
+            }
+        }
+        assertEquals(StringUtils.join(result, "\n"), 1, shared.size());
+    }
+
+    private static String mapping(String domain, String relation, String later) {
+        return "<x3ml version=\"1.0\" source_type=\"xpath\">\n" +
+                "  <namespaces>\n" +
+                "    <namespace prefix=\"crm\" uri=\"http://www.cidoc-crm.org/cidoc-crm/\"/>\n" +
+                "  </namespaces>\n" +
+                "  <mappings>\n" +
+                "    <mapping>\n" +
+                "      <domain>\n" +
+                "        <source_node>" + domain + "</source_node>\n" +
+                "        <target_node><entity><type>crm:E22_Man-Made_Object</type><instance_generator name=\"UUID\"/></entity></target_node>\n" +
+                "      </domain>\n" +
+                "      <link>\n" +
+                "        <path>\n" +
+                "          <source_relation><relation>" + relation + "</relation></source_relation>\n" +
+                "          <target_relation><relationship>crm:P1_is_identified_by</relationship></target_relation>\n" +
+                "        </path>\n" +
+                "        <range>\n" +
+                "          <source_node>" + relation + "</source_node>\n" +
+                "          <target_node>\n" +
+                "            <entity>\n" +
+                "              <type>crm:E41_Appellation</type>\n" +
+                "              <instance_generator name=\"UUID\"/>\n" +
+                "              <label_generator name=\"Literal\"><arg name=\"text\">text()</arg></label_generator>\n" +
+                "            </entity>\n" +
+                "          </target_node>\n" +
+                "        </range>\n" +
+                "      </link>\n" +
+                "    </mapping>\n" +
+                later +
+                "  </mappings>\n" +
+                "</x3ml>";
+    }
+
+    private static X3MLEngine engine(String mapping) throws Exception {
+        return X3MLEngine.load(IOUtils.toInputStream(mapping, "UTF-8"));
+    }
+
+    private static String[] execute(X3MLEngine engine, CharSequence xml) throws Exception {
+        Element element = documentBuilderFactory().newDocumentBuilder().parse(IOUtils.toInputStream(xml.toString(), "UTF-8")).getDocumentElement();
+        return engine.execute(element, X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(2))).toStringArray();
+    }
+
+    private static void assertSame(String[] expected, String[] actual) {
+        List<String> diff = compareNTriples(expected, actual);
+        assertTrue("\n" + StringUtils.join(diff, "\n") + "\n", errorFree(diff));
+    }
+}
@@ -0,0 +1,94 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml;
+
+import eu.delving.x3ml.engine.Generator;
+import eu.delving.x3ml.engine.XdmInput;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static eu.delving.x3ml.AllTests.documentBuilderFactory;
+import static eu.delving.x3ml.AllTests.resource;
+
+/**
+ * Throughput and tree size of the DOM input against the Saxon TinyTree on
+ * the BM20 and lido07 fixtures. The first round warms up, the second one
+ * counts. Run with the test classpath.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+
+public class TinyTreeBenchmark {
+    private static final String[][] FIXTURES = {
+            {"/bm/BM20.x3ml", "/bm/BM20.xml", "/bm/BM20-gen-policy.xml"},
+            {"/lido07/lido07.x3ml", "/lido07/lido07.xml", "/lido07/lido07-gen-policy.xml"}
+    };
+    private static final long NANOS_PER_CASE = 4000000000L;
+    private static final int TREES = 50;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new NullOutputStream())); // the mapping and its generators may print
+        for (int round = 1; round <= 2; round++) {
+            for (String[] fixture : FIXTURES) {
+                byte[] xml = IOUtils.toByteArray(resource(fixture[1]));
+                X3MLEngine engine = X3MLEngine.load(resource(fixture[0]));
+                for (boolean tiny : new boolean[]{false, true}) {
+                    long before = usedHeap();
+                    List<Object> trees = new ArrayList<Object>();
+                    for (int walk = 0; walk < TREES; walk++) {
+                        trees.add(tiny ? XdmInput.parse(new ByteArrayInputStream(xml)) : parse(xml));
+                    }
+                    long treeBytes = (usedHeap() - before) / TREES;
+                    trees.clear();
+                    int runs = 0;
+                    long start = System.nanoTime();
+                    while (System.nanoTime() - start < NANOS_PER_CASE) {
+                        Generator policy = X3MLGeneratorPolicy.load(resource(fixture[2]), X3MLGeneratorPolicy.createUUIDSource(1));
+                        if (tiny) {
+                            engine.execute(XdmInput.parse(new ByteArrayInputStream(xml)), policy);
+                        }
+                        else {
+                            engine.execute(parse(xml), policy);
+                        }
+                        runs++;
+                    }
+                    double millis = (System.nanoTime() - start) / 1e6 / runs;
+                    out.printf("round %d %-22s %-8s %8.2f ms/record %7d KB tree%n",
+                            round, fixture[1], tiny ? "TinyTree" : "DOM", millis, treeBytes / 1024);
+                }
+            }
+        }
+    }
+
+    private static Element parse(byte[] xml) throws Exception {
+        return documentBuilderFactory().newDocumentBuilder().parse(new ByteArrayInputStream(xml)).getDocumentElement();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int walk = 0; walk < 4; walk++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,132 @@
+//===========================================================================
+//    Copyright 2014 Delving B.V.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//===========================================================================
+package eu.delving.x3ml;
+
+import eu.delving.x3ml.engine.Generator;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.w3c.dom.Element;
+
+import java.io.PrintStream;
+import java.util.Map;
+
+import static eu.delving.x3ml.AllTests.documentBuilderFactory;
+import static eu.delving.x3ml.engine.X3ML.GeneratedValue;
+import static eu.delving.x3ml.engine.X3ML.SourceType;
+
+/**
+ * The heap held while a large synthetic input is mapped, once with a local
+ * mapping whose values are let go record by record and once with the same
+ * mapping written so that the engine cannot tell it stays local, which
+ * keeps every value to the end. The heap is taken at the last generated
+ * value, while the registry is still alive. Run with the test classpath,
+ * for instance with -Xmx2g and the number of records as argument.
+ *
+ * @author Gerald de Jong <gerald@delving.eu>
+ */
+
+public class ValueScopesBenchmark {
+    private static final String MAPPING = "" +
+            "<x3ml version=\"1.0\" source_type=\"xpath\">" +
+            "<namespaces><namespace prefix=\"crm\" uri=\"http://www.cidoc-crm.org/cidoc-crm/\"/></namespaces>" +
+            "<mappings><mapping>" +
+            "<domain><source_node>//REC</source_node><target_node><entity>" +
+            "<type>crm:E22_Man-Made_Object</type><instance_generator name=\"UUID\"/>" +
+            "</entity></target_node></domain>" +
+            "<link><path><source_relation><relation>NAME</relation></source_relation>" +
+            "<target_relation><relationship>crm:P1_is_identified_by</relationship></target_relation></path>" +
+            "<range><source_node>NAME</source_node><target_node><entity>" +
+            "<type>crm:E41_Appellation</type><instance_generator name=\"UUID\"/>" +
+            "</entity></target_node></range></link>" +
+            "</mapping></mappings></x3ml>";
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new NullOutputStream())); // the mapping and its generators may print
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        StringBuilder xml = new StringBuilder("<RECS>");
+        for (int walk = 0; walk < records; walk++) {
+            xml.append("<REC><ID>").append(walk).append("</ID><NAME>name ").append(walk).append("</NAME></REC>");
+        }
+        xml.append("</RECS>");
+        Element input = documentBuilderFactory().newDocumentBuilder().parse(IOUtils.toInputStream(xml.toString(), "UTF-8")).getDocumentElement();
+        xml = null;
+        String kept = MAPPING.replace(">NAME<", ">NAME[1]<"); // a predicate is not a plain child step
+        for (int round = 1; round <= 2; round++) {
+            for (String mapping : new String[]{MAPPING, kept}) {
+                X3MLEngine engine = X3MLEngine.load(IOUtils.toInputStream(mapping, "UTF-8"));
+                long base = usedHeap();
+                HeapAtLastValue policy = new HeapAtLastValue(2 * records);
+                int triples = engine.execute(input, policy).toStringArray().length;
+                out.printf("round %d %-5s %d records, %d triples, heap at last value %7d KB over base, %s%n",
+                        round, mapping == kept ? "kept" : "local", records, triples,
+                        (policy.heap - base) / 1024, engine.getValueScopes().toString().replace("\n", ";"));
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int walk = 0; walk < 4; walk++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class HeapAtLastValue implements Generator {
+        private final Generator policy = X3MLGeneratorPolicy.load(null, X3MLGeneratorPolicy.createUUIDSource(6));
+        private final int lastCall;
+        private int calls;
+        long heap;
+
+        private HeapAtLastValue(int lastCall) {
+            this.lastCall = lastCall;
+        }
+
+        @Override
+        public void setDefaultArgType(SourceType sourceType) {
+            policy.setDefaultArgType(sourceType);
+        }
+
+        @Override
+        public void setLanguageFromMapping(String language) {
+            policy.setLanguageFromMapping(language);
+        }
+
+        @Override
+        public void setNamespace(String prefix, String uri) {
+            policy.setNamespace(prefix, uri);
+        }
+
+        @Override
+        public String getLanguageFromMapping() {
+            return policy.getLanguageFromMapping();
+        }
+
+        @Override
+        public GeneratedValue generate(String name, ArgValues arguments) {
+            if (++calls == lastCall) {
+                heap = usedHeap();
+            }
+            return policy.generate(name, arguments);
+        }
+
+        @Override
+        public boolean isConstant(String name, Map<String, SourceType> argTypes) {
+            return policy.isConstant(name, argTypes);
+        }
+    }
+}